@@ -50,6 +50,7 @@ android {
     }
     buildFeatures {
         viewBinding = true
+        buildConfig = true
     }
     kotlinOptions {
         jvmTarget = "11"
@@ -101,13 +102,14 @@ dependencies {
 
     implementation("org.matrix.android:matrix-android-sdk2:1.6.10")
     implementation("androidx.recyclerview:recyclerview:1.3.2")
+    // PagedList, as returned by the SDK's paged room summaries
+    implementation("androidx.paging:paging-runtime-ktx:2.1.2")
 
-    implementation("com.squareup.picasso:picasso:2.71828")
     implementation("androidx.legacy:legacy-support-v4:1.0.0")
     implementation("com.github.stfalcon-studio:ChatKit:0.4.1")
     implementation("com.google.android:flexbox:1.1.0")
-    implementation("jp.wasabeef:picasso-transformations:2.4.0")
     implementation("com.github.bumptech.glide:glide:4.12.0")
+    implementation("com.github.bumptech.glide:okhttp3-integration:4.12.0")
     annotationProcessor("com.github.bumptech.glide:compiler:4.12.0")
 
 }
\ No newline at end of file
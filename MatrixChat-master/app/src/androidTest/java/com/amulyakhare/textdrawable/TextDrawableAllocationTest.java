@@ -0,0 +1,74 @@
+package com.amulyakhare.textdrawable;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Debug;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that drawing a {@link TextDrawable} allocates nothing once its bounds are set, in both the
+ * direct and the rasterized mode, for a screen of 50 avatars redrawn like during a fling.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("deprecation") // Debug alloc counting, still implemented by ART
+public class TextDrawableAllocationTest {
+
+    private static final int AVATARS = 50;
+    private static final int FRAMES = 60;
+    private static final int SIZE = 96;
+
+    @Test
+    public void drawDoesNotAllocate() {
+        assertNoAllocationPerDraw(false);
+    }
+
+    @Test
+    public void rasterizedDrawDoesNotAllocate() {
+        assertNoAllocationPerDraw(true);
+    }
+
+    private void assertNoAllocationPerDraw(boolean rasterize) {
+        TextDrawable[] drawables = new TextDrawable[AVATARS];
+        for (int i = 0; i < AVATARS; i++) {
+            TextDrawable.IConfigBuilder config = TextDrawable.builder()
+                    .beginConfig()
+                    .bold()
+                    .withBorder(4);
+            if (rasterize) {
+                config.rasterize();
+            }
+            drawables[i] = config.endConfig()
+                    .buildRound(String.valueOf((char) ('A' + i % 26)), Color.rgb(i * 5, 100, 200));
+            drawables[i].setBounds(0, 0, SIZE, SIZE);
+        }
+        Canvas canvas = new Canvas(Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888));
+        // The first draw may rasterize, and warms up the text layout caches
+        drawAll(drawables, canvas);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            for (int frame = 0; frame < FRAMES; frame++) {
+                drawAll(drawables, canvas);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        assertEquals("Objects allocated by " + AVATARS * FRAMES + " draws",
+                0, Debug.getThreadAllocCount());
+    }
+
+    private static void drawAll(TextDrawable[] drawables, Canvas canvas) {
+        for (TextDrawable drawable : drawables) {
+            drawable.draw(canvas);
+        }
+    }
+}
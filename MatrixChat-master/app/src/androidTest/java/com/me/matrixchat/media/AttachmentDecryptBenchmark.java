@@ -0,0 +1,143 @@
+package com.me.matrixchat.media;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import kotlin.io.ByteStreamsKt;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Throughput of {@link AttachmentDecryptor} against the previous
+ * {@code CipherInputStream(...).copyTo(fos)} decryption of attachments, for 1, 5 and 20 MB
+ * payloads, on a device. Instrumented so that the wall clock is kept out of the unit tests, which
+ * check the output in AttachmentDecryptorTest. Reports MB/s to the instrumentation and logcat
+ * without asserting any, as it depends on the device.
+ * <p>
+ * The output is discarded so that only the decryption (and, for the single pass, the hashing) is
+ * measured, not the storage.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AttachmentDecryptBenchmark {
+
+    private static final String TAG = "AttachmentDecryptBenchmark";
+    private static final int[] PAYLOAD_MB = {1, 5, 20};
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 5;
+
+    private final Random random = new Random(42);
+    private final byte[] key = randomBytes(32);
+    // As generated by Matrix clients: 64 random bits, then a 64 bit counter starting at 0
+    private final byte[] iv = Arrays.copyOf(randomBytes(8), 16);
+
+    @Test
+    public void singlePassAgainstCipherInputStreamCopy() throws Exception {
+        for (int megabytes : PAYLOAD_MB) {
+            byte[] cipherText = encrypt(randomBytes(megabytes * 1024 * 1024));
+
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                cipherInputStreamCopy(cipherText);
+                singlePass(cipherText);
+            }
+
+            long copyNanos = 0;
+            long singlePassNanos = 0;
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                long start = System.nanoTime();
+                long copied = cipherInputStreamCopy(cipherText);
+                copyNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                long decrypted = singlePass(cipherText);
+                singlePassNanos += System.nanoTime() - start;
+
+                assertEquals(copied, decrypted);
+            }
+
+            report(megabytes, String.format(Locale.ROOT,
+                    "%2d MB  cis.copyTo (no hash): %7.1f MB/s  single pass + sha256: %7.1f MB/s",
+                    megabytes, throughput(megabytes, copyNanos), throughput(megabytes, singlePassNanos)));
+        }
+    }
+
+    // The previous path, which did not verify the hash
+    private long cipherInputStreamCopy(byte[] cipherText) throws GeneralSecurityException, IOException {
+        CountingOutputStream output = new CountingOutputStream();
+        try (InputStream input = new CipherInputStream(new ByteArrayInputStream(cipherText), newCipher())) {
+            ByteStreamsKt.copyTo(input, output, 8 * 1024);
+        }
+        return output.count;
+    }
+
+    private long singlePass(byte[] cipherText) throws GeneralSecurityException, IOException {
+        MessageDigest digest = AttachmentDecryptor.newDigest();
+        long written = AttachmentDecryptor.decrypt(new ByteArrayInputStream(cipherText), new CountingOutputStream(),
+                newCipher(), digest);
+        digest.digest();
+        return written;
+    }
+
+    private static void report(int megabytes, String result) {
+        Log.i(TAG, result);
+        Bundle status = new Bundle();
+        status.putString(TAG + "." + megabytes + "MB", result);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+
+    private static double throughput(int megabytes, long nanos) {
+        return megabytes * MEASURED_ITERATIONS / (nanos / 1e9);
+    }
+
+    private Cipher newCipher() throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    private byte[] encrypt(byte[] plainText) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        return cipher.doFinal(plainText);
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
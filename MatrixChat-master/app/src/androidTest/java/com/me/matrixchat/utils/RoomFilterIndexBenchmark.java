@@ -0,0 +1,97 @@
+package com.me.matrixchat.utils;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time of a keystroke of the room list filter over 5,000 rooms, on a device. Instrumented so that
+ * the wall clock is kept out of the unit tests, which check the matching in RoomFilterIndexTest.
+ * Reports the index build, the resync of an unchanged room list and the keystroke times to the
+ * instrumentation and logcat, and fails if the median keystroke takes a millisecond or more.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RoomFilterIndexBenchmark {
+
+    private static final String TAG = "RoomFilterIndexBenchmark";
+    private static final int ROOM_COUNT = 5000;
+    private static final String[] KEYSTROKES = {"b", "br", "bri", "brid", "bridg", "bridge", "bridge t", "bridge te"};
+    private static final long MAX_MEDIAN_KEYSTROKE_NANOS = 1_000_000L;
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int MEASURED_ITERATIONS = 500;
+    private static final String[] WORDS = {
+            "general", "random", "matrix", "bridge", "telegram", "whatsapp", "signal", "team",
+            "project", "release", "support", "design", "backend", "android", "ios", "web",
+            "zoë", "café", "über", "ångström", "family", "friends", "music", "games"
+    };
+
+    @Test
+    public void keystrokeOverFiveThousandRooms() {
+        Map<String, List<String>> rooms = generateRooms(ROOM_COUNT);
+        RoomFilterIndex index = new RoomFilterIndex();
+
+        long start = System.nanoTime();
+        index.sync(rooms);
+        long indexNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        index.sync(rooms);
+        long resyncNanos = System.nanoTime() - start;
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            for (String keystroke : KEYSTROKES) {
+                index.search(keystroke);
+            }
+        }
+        long[] nanos = new long[MEASURED_ITERATIONS * KEYSTROKES.length];
+        int n = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            for (String keystroke : KEYSTROKES) {
+                start = System.nanoTime();
+                index.search(keystroke);
+                nanos[n++] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(nanos);
+        long median = nanos[nanos.length / 2];
+        long worst = nanos[nanos.length - 1];
+
+        report(String.format(Locale.ROOT,
+                "%d rooms indexed in %.1f ms, resync %.1f ms, keystroke median %.1f us, worst %.1f us",
+                ROOM_COUNT, indexNanos / 1e6, resyncNanos / 1e6, median / 1e3, worst / 1e3));
+        assertTrue("Median keystroke took " + median + " ns", median < MAX_MEDIAN_KEYSTROKE_NANOS);
+    }
+
+    private static void report(String result) {
+        Log.i(TAG, result);
+        Bundle status = new Bundle();
+        status.putString(TAG, result);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+
+    /** Rooms named after two random words, with an alias and a user, the same on every run. */
+    private static Map<String, List<String>> generateRooms(int count) {
+        Random random = new Random(42);
+        Map<String, List<String>> rooms = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            rooms.put("!room" + i + ":example.org",
+                    Arrays.asList(name, "#" + name.replace(' ', '-') + ":example.org", "@user" + i + ":example.org"));
+        }
+        return rooms;
+    }
+}
@@ -0,0 +1,114 @@
+package com.me.matrixchat.utils
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.me.matrixchat.Models.Message
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.matrix.android.sdk.api.session.events.model.Event
+import org.matrix.android.sdk.api.session.events.model.EventType
+import org.matrix.android.sdk.api.session.events.model.UnsignedData
+import org.matrix.android.sdk.api.session.room.sender.SenderInfo
+import org.matrix.android.sdk.api.session.room.timeline.TimelineEvent
+
+/**
+ * Reuse rules of [TimelineMessageCache], through [TimelineMessageCache.getOrPut] as the timeline
+ * uses it. Instrumented, as it is backed by the platform LruCache. Kotlin, as getOrPut suspends
+ * and the SDK events are built with named arguments.
+ */
+@RunWith(AndroidJUnit4::class)
+class TimelineMessageCacheTest {
+
+    private var mapped = 0
+
+    @Test
+    fun entryIsReusedForTheSameVersionOnly() = runBlocking {
+        val cache = TimelineMessageCache(10)
+
+        val message = cache.getOrPut(event("\$a"), ::map)
+        assertSame(message, cache.getOrPut(event("\$a"), ::map))
+        assertEquals(1, mapped)
+        // Decrypted, edited or new sender info since: mapped again
+        cache.getOrPut(event("\$a", type = EventType.ENCRYPTED), ::map)
+        cache.getOrPut(event("\$a", displayName = "Alice"), ::map)
+        assertEquals(3, mapped)
+
+        assertEquals(1, cache.hitCount)
+        assertEquals(3, cache.missCount)
+    }
+
+    @Test
+    fun redactedEventIsMappedAgain() = runBlocking {
+        val cache = TimelineMessageCache(10)
+
+        cache.getOrPut(event("\$a"), ::map)
+        // Same type once redacted, only the content is pruned: must not show the original text
+        val redacted = event("\$a", redactedBy = "\$redaction")
+        assertNull(cache.getOrPut(redacted) { null })
+        assertNull(cache.getOrPut(redacted, ::map))
+        assertEquals(1, mapped)
+    }
+
+    @Test
+    fun eventMappingToNothingIsRemembered() = runBlocking {
+        val cache = TimelineMessageCache(10)
+
+        assertNull(cache.getOrPut(event("\$undecryptable")) { null })
+        assertNull(cache.getOrPut(event("\$undecryptable"), ::map))
+
+        assertEquals(0, mapped)
+        assertEquals(1, cache.hitCount)
+    }
+
+    @Test
+    fun leastRecentlyUsedEntriesAreEvicted() = runBlocking {
+        val cache = TimelineMessageCache(2)
+
+        cache.getOrPut(event("\$a"), ::map)
+        cache.getOrPut(event("\$b"), ::map)
+        cache.getOrPut(event("\$a"), ::map)
+        cache.getOrPut(event("\$c"), ::map)
+        assertEquals(3, mapped)
+
+        cache.getOrPut(event("\$a"), ::map)
+        cache.getOrPut(event("\$c"), ::map)
+        assertEquals(3, mapped)
+        cache.getOrPut(event("\$b"), ::map)
+        assertEquals(4, mapped)
+    }
+
+    private fun map(event: TimelineEvent): Message {
+        mapped++
+        return Message(event, event.eventId, event.root.senderId, event.root.roomId, "text", null, "0", false)
+    }
+
+    private fun event(
+        eventId: String,
+        type: String = EventType.MESSAGE,
+        displayName: String? = null,
+        redactedBy: String? = null
+    ) = TimelineEvent(
+        root = Event(
+            type = type,
+            eventId = eventId,
+            content = mapOf("msgtype" to "m.text", "body" to "text"),
+            senderId = SENDER,
+            roomId = ROOM,
+            unsignedData = redactedBy?.let {
+                UnsignedData(age = null, redactedEvent = Event(type = EventType.REDACTION, eventId = it, redacts = eventId))
+            }
+        ),
+        localId = 0,
+        eventId = eventId,
+        displayIndex = 0,
+        senderInfo = SenderInfo(userId = SENDER, displayName = displayName, isUniqueDisplayName = true, avatarUrl = null)
+    )
+
+    private companion object {
+        const val SENDER = "@alice:example.org"
+        const val ROOM = "!room:example.org"
+    }
+}
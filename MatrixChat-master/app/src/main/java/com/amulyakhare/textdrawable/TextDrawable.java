@@ -7,6 +7,11 @@ import android.graphics.drawable.shapes.RectShape;
 import android.graphics.drawable.shapes.RoundRectShape;
 
 /**
+ * Everything which depends on the bounds (font size, text position, border rectangle) is computed
+ * in {@link #onBoundsChange(Rect)}, {@link #draw(Canvas)} itself does not allocate. With
+ * {@link IConfigBuilder#rasterize()} the drawable is rendered once into a bitmap of its bounds and
+ * every draw is a single blit.
+ *
  * @author amulya
  * @datetime 14 Oct 2014, 3:53 PM
  */
@@ -23,6 +28,16 @@ public class TextDrawable extends ShapeDrawable {
     private final int fontSize;
     private final float radius;
     private final int borderThickness;
+    private final boolean rasterize;
+
+    // Derived from the bounds in onBoundsChange
+    private final RectF borderRect = new RectF();
+    private float textX;
+    private float textY;
+
+    // Rasterized mode only
+    private Bitmap bitmap;
+    private boolean bitmapDirty = true;
 
     private TextDrawable(Builder builder) {
         super(builder.shape);
@@ -59,6 +74,7 @@ public class TextDrawable extends ShapeDrawable {
         Paint paint = getPaint();
         paint.setColor(color);
 
+        rasterize = builder.rasterize;
     }
 
     private int getDarkerShade(int color) {
@@ -67,54 +83,106 @@ public class TextDrawable extends ShapeDrawable {
                 (int)(SHADE_FACTOR * Color.blue(color)));
     }
 
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        super.onBoundsChange(bounds);
+
+        int width = this.width < 0 ? bounds.width() : this.width;
+        int height = this.height < 0 ? bounds.height() : this.height;
+        int fontSize = this.fontSize < 0 ? (Math.min(width, height) / 2) : this.fontSize;
+        textPaint.setTextSize(fontSize);
+        textX = bounds.left + width / 2;
+        textY = bounds.top + height / 2 - ((textPaint.descent() + textPaint.ascent()) / 2);
+
+        borderRect.set(bounds);
+        borderRect.inset(borderThickness/2, borderThickness/2);
+
+        bitmapDirty = true;
+    }
+
     @Override
     public void draw(Canvas canvas) {
-        super.draw(canvas);
+        if (!rasterize) {
+            drawContent(canvas);
+            return;
+        }
+        Rect r = getBounds();
+        if (r.isEmpty()) {
+            return;
+        }
+        if (bitmapDirty) {
+            rasterize(r);
+        }
+        canvas.drawBitmap(bitmap, r.left, r.top, null);
+    }
+
+    /**
+     * The bitmap a rasterized drawable blits, rendered at its current bounds if needed. Lets a
+     * cache keep and share the rendering itself, see LetterAvatarCache.
+     */
+    public Bitmap getBitmap() {
+        if (!rasterize) {
+            throw new IllegalStateException("Only a rasterized TextDrawable has a bitmap");
+        }
         Rect r = getBounds();
+        if (r.isEmpty()) {
+            throw new IllegalStateException("The bounds must be set before the bitmap is rendered");
+        }
+        if (bitmapDirty) {
+            rasterize(r);
+        }
+        return bitmap;
+    }
 
+    private void drawContent(Canvas canvas) {
+        super.draw(canvas);
 
         // draw border
         if (borderThickness > 0) {
             drawBorder(canvas);
         }
 
-        int count = canvas.save();
-        canvas.translate(r.left, r.top);
-
         // draw text
-        int width = this.width < 0 ? r.width() : this.width;
-        int height = this.height < 0 ? r.height() : this.height;
-        int fontSize = this.fontSize < 0 ? (Math.min(width, height) / 2) : this.fontSize;
-        textPaint.setTextSize(fontSize);
-        canvas.drawText(text, width / 2, height / 2 - ((textPaint.descent() + textPaint.ascent()) / 2), textPaint);
-
-        canvas.restoreToCount(count);
+        canvas.drawText(text, textX, textY, textPaint);
+    }
 
+    private void rasterize(Rect r) {
+        if (bitmap == null || bitmap.getWidth() != r.width() || bitmap.getHeight() != r.height()) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            bitmap = Bitmap.createBitmap(r.width(), r.height(), Bitmap.Config.ARGB_8888);
+        } else {
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+        Canvas bitmapCanvas = new Canvas(bitmap);
+        bitmapCanvas.translate(-r.left, -r.top);
+        drawContent(bitmapCanvas);
+        bitmapDirty = false;
     }
 
     private void drawBorder(Canvas canvas) {
-        RectF rect = new RectF(getBounds());
-        rect.inset(borderThickness/2, borderThickness/2);
-
         if (shape instanceof OvalShape) {
-            canvas.drawOval(rect, borderPaint);
+            canvas.drawOval(borderRect, borderPaint);
         }
         else if (shape instanceof RoundRectShape) {
-            canvas.drawRoundRect(rect, radius, radius, borderPaint);
+            canvas.drawRoundRect(borderRect, radius, radius, borderPaint);
         }
         else {
-            canvas.drawRect(rect, borderPaint);
+            canvas.drawRect(borderRect, borderPaint);
         }
     }
 
     @Override
     public void setAlpha(int alpha) {
         textPaint.setAlpha(alpha);
+        bitmapDirty = true;
     }
 
     @Override
     public void setColorFilter(ColorFilter cf) {
         textPaint.setColorFilter(cf);
+        bitmapDirty = true;
     }
 
     @Override
@@ -160,6 +228,8 @@ public class TextDrawable extends ShapeDrawable {
 
         private boolean toUpperCase;
 
+        private boolean rasterize;
+
         public float radius;
 
         private Builder() {
@@ -174,6 +244,7 @@ public class TextDrawable extends ShapeDrawable {
             fontSize = -1;
             isBold = false;
             toUpperCase = false;
+            rasterize = false;
         }
 
         public IConfigBuilder width(int width) {
@@ -216,6 +287,11 @@ public class TextDrawable extends ShapeDrawable {
             return this;
         }
 
+        public IConfigBuilder rasterize() {
+            this.rasterize = true;
+            return this;
+        }
+
         @Override
         public IConfigBuilder beginConfig() {
             return this;
@@ -289,6 +365,13 @@ public class TextDrawable extends ShapeDrawable {
 
         public IConfigBuilder toUpperCase();
 
+        /**
+         * Renders the drawable into a bitmap once per bounds (or alpha or color filter) change, and
+         * draws that bitmap afterwards. For drawables drawn many times at the same size, at the
+         * cost of one bitmap of the bounds' size.
+         */
+        public IConfigBuilder rasterize();
+
         public IShapeBuilder endConfig();
     }
 
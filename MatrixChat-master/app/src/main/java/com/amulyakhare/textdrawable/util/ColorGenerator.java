@@ -1,21 +1,30 @@
 package com.amulyakhare.textdrawable.util;
 
+import android.util.LruCache;
+
 import java.util.Arrays;
-import java.util.List;
 import java.util.Random;
 
 /**
+ * Picks a color of a fixed palette for a key, the same for the same key on every device.
+ * <p>
+ * The hash is the one of the Matrix user color algorithm (as in Element): for each UTF-16 unit
+ * {@code hash = hash * 31 + c} on 32 bits, the color is {@code |hash| % palette size}. It is
+ * computed without allocating, and the palette index of recent keys is kept in a bounded cache.
+ *
  * @author amulya
  * @datetime 14 Oct 2014, 5:20 PM
  */
 public class ColorGenerator {
 
+    private static final int DEFAULT_CACHE_SIZE = 512;
+
     public static ColorGenerator DEFAULT;
 
     public static ColorGenerator MATERIAL;
 
     static {
-        DEFAULT = create(Arrays.asList(
+        DEFAULT = create(
                 0xfff16364,
                 0xfff58559,
                 0xfff9a43e,
@@ -25,8 +34,8 @@ public class ColorGenerator {
                 0xff2093cd,
                 0xffad62a7,
                 0xff805781
-        ));
-        MATERIAL = create(Arrays.asList(
+        );
+        MATERIAL = create(
                 0xffe57373,
                 0xfff06292,
                 0xffba68c8,
@@ -44,26 +53,65 @@ public class ColorGenerator {
                 0xffffb74d,
                 0xffa1887f,
                 0xff90a4ae
-        ));
+        );
     }
 
-    private final List<Integer> mColors;
+    private final int[] mColors;
+    // Palette indexes are small, their boxes come from the Integer cache
+    private final LruCache<String, Integer> mIndexes;
     private final Random mRandom;
 
-    public static ColorGenerator create(List<Integer> colorList) {
-        return new ColorGenerator(colorList);
+    public static ColorGenerator create(int... colors) {
+        return new ColorGenerator(colors, DEFAULT_CACHE_SIZE);
+    }
+
+    public static ColorGenerator create(int[] colors, int cacheSize) {
+        return new ColorGenerator(colors, cacheSize);
     }
 
-    private ColorGenerator(List<Integer> colorList) {
-        mColors = colorList;
+    private ColorGenerator(int[] colors, int cacheSize) {
+        if (colors.length == 0) {
+            throw new IllegalArgumentException("Empty palette");
+        }
+        mColors = Arrays.copyOf(colors, colors.length);
+        mIndexes = new LruCache<>(cacheSize);
         mRandom = new Random(System.currentTimeMillis());
     }
 
     public int getRandomColor() {
-        return mColors.get(mRandom.nextInt(mColors.size()));
+        return mColors[mRandom.nextInt(mColors.length)];
+    }
+
+    /**
+     * Returns the color of {@code key}, a Matrix id or a display name. A null key gets the first
+     * color.
+     */
+    public int getColor(String key) {
+        if (key == null) {
+            return mColors[0];
+        }
+        Integer index = mIndexes.get(key);
+        if (index == null) {
+            index = indexOf(hash(key), mColors.length);
+            mIndexes.put(key, index);
+        }
+        return mColors[index];
+    }
+
+    /** The 32 bit string hash of the Matrix user color algorithm. */
+    public static int hash(CharSequence key) {
+        int hash = 0;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash << 5) - hash + key.charAt(i);
+        }
+        return hash;
     }
 
-    public int getColor(Object key) {
-        return mColors.get(Math.abs(key.hashCode()) % mColors.size());
+    /**
+     * {@code |hash| % size} where {@code |Integer.MIN_VALUE|} is 2^31, as in JavaScript, rather
+     * than a negative number.
+     */
+    public static int indexOf(int hash, int size) {
+        return (int) (Math.abs((long) hash) % size);
     }
 }
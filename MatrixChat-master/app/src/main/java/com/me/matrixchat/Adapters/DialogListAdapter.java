@@ -6,17 +6,23 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 
 import com.me.matrixchat.R;
+import com.me.matrixchat.media.ImagePipeline;
 import com.stfalcon.chatkit.commons.ImageLoader;
 import com.stfalcon.chatkit.commons.Style;
 import com.stfalcon.chatkit.commons.models.IDialog;
+import com.stfalcon.chatkit.commons.models.IMessage;
 import com.stfalcon.chatkit.dialogs.DialogsListAdapter;
+import com.stfalcon.chatkit.utils.DateFormatter;
 
 import org.matrix.android.sdk.api.session.user.model.User;
 import org.matrix.android.sdk.api.util.MatrixItem;
 
+import java.util.Date;
+
 public class DialogListAdapter<DIALOG extends IDialog>
         extends DialogsListAdapter<DIALOG> {
     public DialogListAdapter(ImageLoader imageLoader) {
@@ -43,7 +49,47 @@ public class DialogListAdapter<DIALOG extends IDialog>
         public void onBind(final DIALOG dialog) {
             // Call the superclass implementation to retain default behavior
             super.onBind(dialog);
+            bindDialog(dialog);
+        }
 
+        /**
+         * Binds {@code dialog} for an adapter other than ChatKit's, see {@link PagedRoomListAdapter}:
+         * what ChatKit hands to its rows is passed in, and nothing depends on a DialogsList style.
+         * Null binds a placeholder, a row which is not loaded yet.
+         */
+        public void bind(@Nullable final DIALOG dialog,
+                         @Nullable ImageLoader imageLoader,
+                         @Nullable DateFormatter.Formatter datesFormatter,
+                         @Nullable DialogsListAdapter.OnDialogClickListener<DIALOG> onClickListener,
+                         @Nullable DialogsListAdapter.OnDialogLongClickListener<DIALOG> onLongClickListener) {
+            if (dialog == null) {
+                bindPlaceholder();
+                return;
+            }
+            this.imageLoader = imageLoader;
+
+            IMessage lastMessage = dialog.getLastMessage();
+            Date date = lastMessage != null ? lastMessage.getCreatedAt() : null;
+            String formattedDate = date != null && datesFormatter != null ? datesFormatter.format(date) : null;
+            if (formattedDate == null && date != null) {
+                formattedDate = DateFormatter.format(date, DateFormatter.Template.TIME);
+            }
+            tvDate.setText(formattedDate);
+            tvLastMessage.setText(lastMessage != null ? lastMessage.getText() : null);
+            tvBubble.setText(String.valueOf(dialog.getUnreadCount()));
+            tvBubble.setVisibility(dialog.getUnreadCount() > 0 ? View.VISIBLE : View.GONE);
+            // As ChatKit: the author of the last message is only shown in group dialogs
+            ivLastMessageUser.setVisibility(dialog.getUsers().size() > 1 && lastMessage != null ? View.VISIBLE : View.GONE);
+
+            container.setOnClickListener(onClickListener == null ? null : view -> onClickListener.onDialogClick(dialog));
+            container.setOnLongClickListener(onLongClickListener == null ? null : view -> {
+                onLongClickListener.onDialogLongClick(dialog);
+                return true;
+            });
+            bindDialog(dialog);
+        }
+
+        private void bindDialog(DIALOG dialog) {
             tvName.setTextColor(ContextCompat.getColor(tvName.getContext(), R.color.navy_blue));
             tvName.setText(toSentenceCase(dialog.getDialogName()));
 
@@ -64,6 +110,20 @@ public class DialogListAdapter<DIALOG extends IDialog>
             }
         }
 
+        // A row of PagedRoomListAdapter which is not loaded yet, none of its views show the previous room
+        private void bindPlaceholder() {
+            container.setOnClickListener(null);
+            container.setOnLongClickListener(null);
+            tvName.setText(null);
+            tvDate.setText(null);
+            tvLastMessage.setText(null);
+            tvBubble.setVisibility(View.GONE);
+            ImagePipeline.INSTANCE.clear(ivAvatar);
+            ivAvatar.setImageResource(R.drawable.user_default);
+            ImagePipeline.INSTANCE.clear(ivLastMessageUser);
+            ivLastMessageUser.setImageDrawable(null);
+        }
+
         private String toSentenceCase(String string) {
             if (string == null || string.isEmpty()) {
                 return string;
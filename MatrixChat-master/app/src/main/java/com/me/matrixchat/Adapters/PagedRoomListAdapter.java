@@ -0,0 +1,237 @@
+package com.me.matrixchat.Adapters;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.paging.AsyncPagedListDiffer;
+import androidx.paging.PagedList;
+import androidx.recyclerview.widget.AsyncDifferConfig;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.me.matrixchat.R;
+import com.me.matrixchat.data.RoomPreview;
+import com.me.matrixchat.data.RoomSummaryDialogWrapper;
+import com.stfalcon.chatkit.commons.ImageLoader;
+import com.stfalcon.chatkit.dialogs.DialogsListAdapter;
+import com.stfalcon.chatkit.utils.DateFormatter;
+
+import org.matrix.android.sdk.api.session.room.model.RoomSummary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Room list adapter over a {@link PagedList} of room summaries, for accounts with thousands of rooms.
+ * <p>
+ * Only the pages around the bound rows are loaded, the other rows are placeholders which
+ * {@link DialogListAdapter.DialogViewHolder} binds empty. New lists are diffed in the background.
+ * Rows are the ones of the ChatKit room list, with the same layout and view holder, but the
+ * adapter is not ChatKit's: its list of dialogs is mutable, a paged list is not. The content only
+ * changes through {@link #submitList} and {@link #setFilter}. A summary is wrapped into a
+ * {@link RoomSummaryDialogWrapper} when its row is bound, and the wrapper is reused while the
+ * summary of its room does not change. The previews of the rooms are computed in the background
+ * as their page is loaded or filtered in, see {@link RoomPreview#prefetch}, so that a bind rarely
+ * parses an event.
+ * <p>
+ * While the list is filtered, see {@link #setFilter(List)}, the matching rooms are shown instead and
+ * the updates of the paged list are only applied once the filter is cleared.
+ * <p>
+ * The time from a list being submitted to the first frame showing it is tracked, see {@link #dump()}.
+ * Rows have no stable ids: a placeholder has no room id to derive one from.
+ */
+public class PagedRoomListAdapter extends RecyclerView.Adapter<DialogListAdapter.DialogViewHolder<RoomSummaryDialogWrapper>> {
+
+    private static final String TAG = "PagedRoomListAdapter";
+
+    // A few screens of rows, the preview of an older row is found again in RoomPreview's cache
+    private static final int MAX_CACHED_WRAPPERS = 100;
+    private static final long SLOW_UPDATE_MS = 100;
+
+    private static final DiffUtil.ItemCallback<RoomSummary> DIFF_CALLBACK = new DiffUtil.ItemCallback<RoomSummary>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull RoomSummary oldItem, @NonNull RoomSummary newItem) {
+            return oldItem.getRoomId().equals(newItem.getRoomId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull RoomSummary oldItem, @NonNull RoomSummary newItem) {
+            return oldItem.equals(newItem);
+        }
+    };
+
+    private final ImageLoader imageLoader;
+    private final AsyncPagedListDiffer<RoomSummary> differ;
+    private final LruCache<String, RoomSummaryDialogWrapper> wrappers = new LruCache<>(MAX_CACHED_WRAPPERS);
+    @Nullable
+    private List<RoomSummary> filtered;
+    @Nullable
+    private DateFormatter.Formatter datesFormatter;
+    @Nullable
+    private DialogsListAdapter.OnDialogClickListener<RoomSummaryDialogWrapper> onDialogClickListener;
+    @Nullable
+    private DialogsListAdapter.OnDialogLongClickListener<RoomSummaryDialogWrapper> onDialogLongClickListener;
+
+    private int frames;
+    private long totalLatencyMs;
+    private long maxLatencyMs;
+
+    public PagedRoomListAdapter(ImageLoader imageLoader) {
+        this.imageLoader = imageLoader;
+        differ = new AsyncPagedListDiffer<>(new PagedListUpdateCallback(),
+                new AsyncDifferConfig.Builder<>(DIFF_CALLBACK).build());
+    }
+
+    public void setDatesFormatter(@Nullable DateFormatter.Formatter datesFormatter) {
+        this.datesFormatter = datesFormatter;
+    }
+
+    public void setOnDialogClickListener(@Nullable DialogsListAdapter.OnDialogClickListener<RoomSummaryDialogWrapper> listener) {
+        onDialogClickListener = listener;
+    }
+
+    public void setOnDialogLongClickListener(@Nullable DialogsListAdapter.OnDialogLongClickListener<RoomSummaryDialogWrapper> listener) {
+        onDialogLongClickListener = listener;
+    }
+
+    /**
+     * Displays {@code pagedList}, {@code commitCallback} runs once it is diffed and shown.
+     */
+    public void submitList(@Nullable PagedList<RoomSummary> pagedList, @Nullable Runnable commitCallback) {
+        long submittedAt = SystemClock.uptimeMillis();
+        differ.submitList(pagedList, () -> {
+            Choreographer.getInstance().postFrameCallback(frameTimeNanos -> onFrame(submittedAt));
+            if (commitCallback != null) {
+                commitCallback.run();
+            }
+        });
+    }
+
+    /**
+     * Shows {@code rooms} instead of the paged list, or the paged list again for null.
+     */
+    public void setFilter(@Nullable List<RoomSummary> rooms) {
+        if (rooms == null && filtered == null) {
+            return;
+        }
+        filtered = rooms;
+        if (rooms != null) {
+            RoomPreview.Companion.prefetch(rooms);
+        }
+        notifyDataSetChanged();
+    }
+
+    @NonNull
+    @Override
+    public DialogListAdapter.DialogViewHolder<RoomSummaryDialogWrapper> onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_room_summary, parent, false);
+        return new DialogListAdapter.DialogViewHolder<>(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull DialogListAdapter.DialogViewHolder<RoomSummaryDialogWrapper> holder, int position) {
+        holder.bind(wrap(position), imageLoader, datesFormatter, onDialogClickListener, onDialogLongClickListener);
+    }
+
+    @Override
+    public int getItemCount() {
+        return filtered != null ? filtered.size() : differ.getItemCount();
+    }
+
+    public void dump() {
+        PagedList<RoomSummary> current = differ.getCurrentList();
+        int loaded = current == null ? 0 : current.getLoadedCount();
+        Log.d(TAG, loaded + "/" + getItemCount() + " rooms loaded, wrappers reused " + wrappers.hitCount()
+                + "/" + (wrappers.hitCount() + wrappers.missCount()) + ", previews reused "
+                + RoomPreview.Companion.getHitCount() + "/"
+                + (RoomPreview.Companion.getHitCount() + RoomPreview.Companion.getMissCount()));
+        if (frames > 0) {
+            Log.d(TAG, frames + " room list updates, submission to frame avg " + totalLatencyMs / frames
+                    + " ms, max " + maxLatencyMs + " ms");
+        }
+    }
+
+    private void onFrame(long submittedAt) {
+        long latency = SystemClock.uptimeMillis() - submittedAt;
+        frames++;
+        totalLatencyMs += latency;
+        maxLatencyMs = Math.max(maxLatencyMs, latency);
+        if (latency > SLOW_UPDATE_MS) {
+            Log.d(TAG, "Room list update shown " + latency + " ms after it was submitted");
+        }
+    }
+
+    // Null for a placeholder, reading a row also loads the pages around it
+    @Nullable
+    private RoomSummaryDialogWrapper wrap(int position) {
+        RoomSummary summary = filtered != null ? filtered.get(position) : differ.getItem(position);
+        return summary == null ? null : wrap(summary);
+    }
+
+    private RoomSummaryDialogWrapper wrap(RoomSummary summary) {
+        RoomSummaryDialogWrapper wrapper = wrappers.get(summary.getRoomId());
+        if (wrapper == null || !wrapper.getRoomSummary().equals(summary)) {
+            wrapper = new RoomSummaryDialogWrapper(summary);
+            wrappers.put(summary.getRoomId(), wrapper);
+        }
+        return wrapper;
+    }
+
+    // Reads the loaded rooms without loading the pages around them, placeholders are skipped
+    private void prefetchPreviews(int position, int count) {
+        PagedList<RoomSummary> current = differ.getCurrentList();
+        if (current == null) {
+            return;
+        }
+        List<RoomSummary> loaded = new ArrayList<>();
+        int end = Math.min(position + count, current.size());
+        for (int i = position; i < end; i++) {
+            RoomSummary summary = current.get(i);
+            if (summary != null) {
+                loaded.add(summary);
+            }
+        }
+        RoomPreview.Companion.prefetch(loaded);
+    }
+
+    // The rows of the paged list are not displayed while filtered, setFilter(null) rebinds them all
+    private final class PagedListUpdateCallback implements ListUpdateCallback {
+        @Override
+        public void onInserted(int position, int count) {
+            prefetchPreviews(position, count);
+            if (filtered == null) {
+                notifyItemRangeInserted(position, count);
+            }
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            if (filtered == null) {
+                notifyItemRangeRemoved(position, count);
+            }
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            if (filtered == null) {
+                notifyItemMoved(fromPosition, toPosition);
+            }
+        }
+
+        @Override
+        public void onChanged(int position, int count, @Nullable Object payload) {
+            prefetchPreviews(position, count);
+            if (filtered == null) {
+                notifyItemRangeChanged(position, count, payload);
+            }
+        }
+    }
+}
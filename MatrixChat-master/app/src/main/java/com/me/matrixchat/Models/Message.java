@@ -3,6 +3,8 @@ package com.me.matrixchat.Models;
 import androidx.annotation.Nullable;
 
 import com.me.matrixchat.data.TimelineEventSenderWrapper;
+import com.me.matrixchat.media.EncryptedFileModel;
+import com.me.matrixchat.media.MxcMediaModel;
 import com.stfalcon.chatkit.commons.models.IMessage;
 import com.stfalcon.chatkit.commons.models.IUser;
 import com.stfalcon.chatkit.commons.models.MessageContentType;
@@ -11,6 +13,7 @@ import com.stfalcon.chatkit.commons.models.MessageContentType.Image;
 import org.matrix.android.sdk.api.session.room.timeline.TimelineEvent;
 
 import java.util.Date;
+import java.util.Objects;
 
 public class Message implements IMessage, Image {
     private String messageId;
@@ -22,6 +25,11 @@ public class Message implements IMessage, Image {
     private transient TimelineEvent event; // 🔥 This prevents serialization
 
     private String imageUrl;
+    private EncryptedFileModel encryptedFile; // Set for encrypted images, imageUrl is then the mxc uri
+    private MxcMediaModel media; // Set for other remote images, imageUrl is then the mxc uri
+    // imageUrl/encryptedFile/media are what the bubble shows, a thumbnail when there is one
+    private String fullSizeUrl;
+    private EncryptedFileModel fullSizeFile;
 
     // Constructors, Getters, and Setters
 
@@ -107,5 +115,65 @@ public class Message implements IMessage, Image {
     public String getImageUrl() {
         return imageUrl;
     }
+
+    @Nullable
+    public EncryptedFileModel getEncryptedFile() {
+        return encryptedFile;
+    }
+
+    public void setEncryptedFile(EncryptedFileModel encryptedFile) {
+        this.encryptedFile = encryptedFile;
+    }
+
+    @Nullable
+    public MxcMediaModel getMedia() {
+        return media;
+    }
+
+    public void setMedia(MxcMediaModel media) {
+        this.media = media;
+    }
+
+    /**
+     * Mxc uri of the original image, opened from the bubble. For encrypted images this is the mxc
+     * uri of {@link #getFullSizeFile()}.
+     */
+    @Nullable
+    public String getFullSizeUrl() {
+        return fullSizeUrl;
+    }
+
+    public void setFullSizeUrl(String fullSizeUrl) {
+        this.fullSizeUrl = fullSizeUrl;
+    }
+
+    @Nullable
+    public EncryptedFileModel getFullSizeFile() {
+        return fullSizeFile;
+    }
+
+    public void setFullSizeFile(EncryptedFileModel fullSizeFile) {
+        this.fullSizeFile = fullSizeFile;
+    }
+
+    public TimelineEvent getEvent() {
+        return event;
+    }
+
+    /**
+     * Returns true when both messages would render the same row, used to skip rebinding
+     * items that did not change between two timeline snapshots.
+     */
+    public boolean isContentTheSame(Message other) {
+        return other != null
+                && isEncrypted == other.isEncrypted
+                && Objects.equals(messageId, other.messageId)
+                && Objects.equals(senderId, other.senderId)
+                && Objects.equals(text, other.text)
+                && Objects.equals(imageUrl, other.imageUrl)
+                && Objects.equals(timestamp, other.timestamp)
+                && Objects.equals(event == null ? null : event.getSenderInfo(),
+                other.event == null ? null : other.event.getSenderInfo());
+    }
 }
 
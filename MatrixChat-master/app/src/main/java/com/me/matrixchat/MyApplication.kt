@@ -28,6 +28,7 @@ import androidx.work.WorkManager
 import com.me.matrixchat.Workers.MessageCheckWorker
 import org.matrix.android.sdk.api.Matrix
 import org.matrix.android.sdk.api.MatrixConfiguration
+import java.io.File
 import java.util.concurrent.TimeUnit
 
 
@@ -38,6 +39,7 @@ class MyApplication : Application() {
     override fun onCreate() {
         super.onCreate()
 
+        deleteLegacyImageCache()
         // You should first create a Matrix instance before using it
         createMatrix()
         // You can then grab the authentication service and search for a known session
@@ -61,7 +63,17 @@ class MyApplication : Application() {
         )
     }
 
+    // Images used to be cached by Picasso as well, everything now goes through ImagePipeline
+    private fun deleteLegacyImageCache() {
+        val directory = File(cacheDir, LEGACY_PICASSO_CACHE_DIR)
+        if (directory.exists()) {
+            Thread { directory.deleteRecursively() }.start()
+        }
+    }
+
     companion object {
+        private const val LEGACY_PICASSO_CACHE_DIR = "picasso-cache"
+
         fun getMatrix(context: Context): Matrix {
             return (context.applicationContext as MyApplication).matrix
         }
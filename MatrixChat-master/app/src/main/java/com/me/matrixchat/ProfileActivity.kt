@@ -16,24 +16,19 @@ import androidx.lifecycle.LifecycleOwner
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.Observer
 import androidx.lifecycle.lifecycleScope
-import com.bumptech.glide.Glide
-import com.bumptech.glide.load.model.GlideUrl
-import com.bumptech.glide.load.model.LazyHeaders
 import com.google.gson.annotations.SerializedName
+import com.me.matrixchat.data.RoomSummaryRepository
+import com.me.matrixchat.media.AvatarRequestBody
+import com.me.matrixchat.media.ImagePipeline
+import com.me.matrixchat.network.HttpClientProvider
 import com.me.matrixchat.utils.AvatarRenderer
 import com.me.matrixchat.utils.MatrixItemColorProvider
-import com.squareup.picasso.Picasso
 import kotlinx.coroutines.*
-import okhttp3.MediaType.Companion.toMediaTypeOrNull
 import okhttp3.RequestBody
-import okhttp3.RequestBody.Companion.toRequestBody
 import org.matrix.android.sdk.api.auth.AuthenticationService
 import org.matrix.android.sdk.api.session.Session
-import org.matrix.android.sdk.api.session.content.ContentUrlResolver
 import org.matrix.android.sdk.api.util.toMatrixItem
 import retrofit2.Response
-import retrofit2.Retrofit
-import retrofit2.converter.gson.GsonConverterFactory
 import retrofit2.http.Body
 import retrofit2.http.Header
 import retrofit2.http.POST
@@ -57,8 +52,8 @@ class ProfileActivity : AppCompatActivity() {
                 avatarUri = uri
                 val imageView = findViewById<ImageView>(R.id.toolbarAvatarImageView)
 
-                // Ensure Picasso cancels any pending request
-                Picasso.get().cancelRequest(imageView)
+                // Ensure the pending avatar load does not overwrite the picked image
+                ImagePipeline.clear(imageView)
                 // Ensure previous image is cleared
                 imageView.setImageBitmap(null)
                 imageView.setImageDrawable(null)
@@ -297,6 +292,7 @@ class ProfileActivity : AppCompatActivity() {
                 progressBar.visibility = View.GONE
             }
 
+            RoomSummaryRepository.release()
             SessionHolder.currentSession = null
             startActivity(Intent(this@ProfileActivity, Login::class.java))
             val prefs: SharedPreferences? =
@@ -306,7 +302,7 @@ class ProfileActivity : AppCompatActivity() {
         }
     }
 
-    // Load profile image with Glide, or fallback to observe updates
+    // Load profile image through ImagePipeline, or fallback to observe updates
     private fun loadAvatar(
         session: Session,
         imageView: ImageView,
@@ -315,31 +311,8 @@ class ProfileActivity : AppCompatActivity() {
     ) {
         try {
             if (!avatarUrl.isNullOrEmpty() && avatarUrl.startsWith("mxc://")) {
-                val resolvedUrl = session.contentUrlResolver().resolveThumbnail(
-                    avatarUrl,
-                    100,
-                    100,
-                    ContentUrlResolver.ThumbnailMethod.SCALE
-                )?.replace("/_matrix/media/r0/", "/_matrix/client/v1/media/")
-
-                if (resolvedUrl != null) {
-                    val accessToken = session.sessionParams?.credentials?.accessToken ?: ""
-                    val glideUrl = GlideUrl(
-                        resolvedUrl,
-                        LazyHeaders.Builder()
-                            .addHeader("Authorization", "Bearer $accessToken")
-                            .build()
-                    )
-                    Glide.with(imageView.context)
-                        .load(glideUrl)
-                        .placeholder(R.drawable.user_default) // your placeholder drawable
-                        .error(R.drawable.user_default)       // your error drawable
-                        //.circleCrop()
-                        .into(imageView)
-                    progressBar.visibility = View.GONE
-                } else {
-                    observeUserAvatar(session, imageView, user)
-                }
+                avatarRenderer.render(avatarUrl, user ?: session.myUserId, imageView, circle = false)
+                progressBar.visibility = View.GONE
             } else {
                 observeUserAvatar(session, imageView, user)
             }
@@ -358,7 +331,7 @@ class ProfileActivity : AppCompatActivity() {
     // Fallback: Listen to user profile updates for the avatar
     private fun observeUserAvatar(session: Session, imageView: ImageView, user: String? = null) {
         if (user != null) {
-            avatarRenderer.render(user, imageView)
+            avatarRenderer.render(null, user, imageView, circle = false)
         } else {
             //session.userService().getUserLive(session.myUserId)
             //.observe(this) { user ->
@@ -370,7 +343,7 @@ class ProfileActivity : AppCompatActivity() {
                 .observeOnce(this) { user ->
                     user.map { it.toMatrixItem() }
                         .getOrNull()
-                        ?.let { avatarRenderer.render(it, imageView) }
+                        ?.let { avatarRenderer.render(it, imageView, circle = false) }
                 }
 
         }
@@ -421,26 +394,18 @@ class ProfileActivity : AppCompatActivity() {
         val accessToken = session.sessionParams?.credentials?.accessToken
             ?: throw IllegalStateException("Access token not available")
 
-        // Read file bytes safely
-        val inputStream = context.contentResolver.openInputStream(fileUri)
-        val fileBytes = inputStream?.readBytes() ?: return
-        inputStream.close()
+        // Sent as is when it fits, else downscaled once: never the full size bitmap in memory
+        val requestBody = AvatarRequestBody.create(context, fileUri) ?: return
 
         // Prepare Retrofit for media upload
-        val mediaRetrofit = Retrofit.Builder()
-            .baseUrl("$homeserver/_matrix/media/r0/") // Correct media upload base URL
-            .addConverterFactory(GsonConverterFactory.create())
-            .build()
+        val mediaRetrofit = HttpClientProvider.retrofit("$homeserver/_matrix/media/r0/")
 
         val mediaApi = mediaRetrofit.create(MediaApi::class.java)
 
-        // Prepare request
-        val requestBody = fileBytes.toRequestBody("image/jpeg".toMediaTypeOrNull())
-
         // Upload image
         val uploadResponse = mediaApi.uploadMedia(
             file = requestBody,
-            filename = "avatar.jpg",
+            filename = requestBody.fileName,
             authHeader = "Bearer $accessToken"
         )
 
@@ -458,10 +423,7 @@ class ProfileActivity : AppCompatActivity() {
         accessToken: String
     ) {
         // Prepare Retrofit for profile updates
-        val profileRetrofit = Retrofit.Builder()
-            .baseUrl("$homeserver/_matrix/client/v3/") // Correct profile update base URL
-            .addConverterFactory(GsonConverterFactory.create())
-            .build()
+        val profileRetrofit = HttpClientProvider.retrofit("$homeserver/_matrix/client/v3/")
 
         val profileApi = profileRetrofit.create(ProfileApi::class.java)
 
@@ -11,14 +11,13 @@ import android.widget.Toast
 import androidx.appcompat.app.AppCompatActivity
 import androidx.lifecycle.lifecycleScope
 import com.google.gson.annotations.SerializedName
+import com.me.matrixchat.network.HttpClientProvider
 import kotlinx.coroutines.launch
 import okhttp3.*
 import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.RequestBody.Companion.toRequestBody
 import org.json.JSONObject
 import retrofit2.Response
-import retrofit2.Retrofit
-import retrofit2.converter.gson.GsonConverterFactory
 import retrofit2.http.Body
 import retrofit2.http.POST
 import java.io.IOException
@@ -26,7 +25,6 @@ import java.security.MessageDigest
 
 class RecoveryActivity : AppCompatActivity() {
 
-    private val client = OkHttpClient()
     private lateinit var homeserver: String
 
     override fun onCreate(savedInstanceState: Bundle?) {
@@ -94,10 +92,7 @@ class RecoveryActivity : AppCompatActivity() {
 
     // Retrofit‑based method to verify the recovery key
     private fun verifyRecoveryKey(userId: String, seedHash: String, callback: (Boolean) -> Unit) {
-        val retrofit = Retrofit.Builder()
-            .baseUrl("$homeserver/")  // Ensure trailing slash
-            .addConverterFactory(GsonConverterFactory.create())
-            .build()
+        val retrofit = HttpClientProvider.retrofit(homeserver)
 
         val recoveryApi = retrofit.create(RecoveryApi::class.java)
 
@@ -119,10 +114,7 @@ class RecoveryActivity : AppCompatActivity() {
 
 
     private fun updatePassword(userId: String, newPassword: String, callback: (Boolean) -> Unit) {
-        val retrofit = Retrofit.Builder()
-            .baseUrl("$homeserver/")
-            .addConverterFactory(GsonConverterFactory.create())
-            .build()
+        val retrofit = HttpClientProvider.retrofit(homeserver)
 
         val recoveryApi = retrofit.create(RecoveryApi::class.java)
 
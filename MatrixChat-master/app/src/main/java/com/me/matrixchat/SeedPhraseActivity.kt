@@ -13,6 +13,7 @@ import android.widget.Toast
 import androidx.appcompat.app.AppCompatActivity
 import androidx.lifecycle.lifecycleScope
 import com.me.matrixchat.Views.SeedView
+import com.me.matrixchat.network.HttpClientProvider
 import kotlinx.coroutines.launch
 import org.bitcoinj.crypto.MnemonicCode
 import org.matrix.android.sdk.api.Matrix
@@ -23,8 +24,6 @@ import java.security.MessageDigest
 import okhttp3.*
 import okhttp3.MediaType.Companion.toMediaType
 import org.json.JSONObject
-import retrofit2.Retrofit
-import retrofit2.converter.gson.GsonConverterFactory
 import retrofit2.http.Body
 import retrofit2.http.POST
 import java.io.IOException
@@ -171,10 +170,7 @@ class SeedPhraseActivity : AppCompatActivity() {
 
     // Retrofit‑based method to store the recovery key
     private fun storeRecoveryKey(userId: String, recoveryKeyHash: String, callback: (Boolean) -> Unit) {
-        val retrofit = Retrofit.Builder()
-            .baseUrl(getString(R.string.homeserver_url)+"/")  // e.g. "https://matrixsynapsechat.duckdns.org/"
-            .addConverterFactory(GsonConverterFactory.create())
-            .build()
+        val retrofit = HttpClientProvider.retrofit(getString(R.string.homeserver_url))
 
         val storeRecoveryApi = retrofit.create(StoreRecoveryApi::class.java)
 
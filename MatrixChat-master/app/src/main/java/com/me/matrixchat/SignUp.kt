@@ -19,12 +19,12 @@ import androidx.appcompat.app.AppCompatActivity
 import androidx.lifecycle.lifecycleScope
 import com.google.gson.annotations.SerializedName
 import com.me.matrixchat.ui.MainActivity
+import com.me.matrixchat.media.AvatarRequestBody
+import com.me.matrixchat.network.HttpClientProvider
 import com.squareup.moshi.Json
 import kotlinx.coroutines.launch
-import okhttp3.MediaType.Companion.toMediaTypeOrNull
 import okhttp3.MultipartBody
 import okhttp3.RequestBody
-import okhttp3.RequestBody.Companion.toRequestBody
 import org.matrix.android.sdk.api.Matrix
 import org.matrix.android.sdk.api.auth.AuthenticationService
 import org.matrix.android.sdk.api.auth.data.HomeServerConnectionConfig
@@ -33,8 +33,6 @@ import org.matrix.android.sdk.api.failure.Failure
 import org.matrix.android.sdk.api.session.media.MediaService
 import org.matrix.android.sdk.api.session.Session
 import retrofit2.Response
-import retrofit2.Retrofit
-import retrofit2.converter.gson.GsonConverterFactory
 import retrofit2.http.Body
 import retrofit2.http.POST
 import retrofit2.http.Query
@@ -307,26 +305,18 @@ class SignUp : AppCompatActivity() {
         val accessToken = session.sessionParams?.credentials?.accessToken
             ?: throw IllegalStateException("Access token not available")
 
-        // Read file bytes safely
-        val inputStream = context.contentResolver.openInputStream(fileUri)
-        val fileBytes = inputStream?.readBytes() ?: return
-        inputStream.close()
+        // Sent as is when it fits, else downscaled once: never the full size bitmap in memory
+        val requestBody = AvatarRequestBody.create(context, fileUri) ?: return
 
         // Prepare Retrofit for media upload
-        val mediaRetrofit = Retrofit.Builder()
-            .baseUrl("$homeserver/_matrix/media/r0/") // Correct media upload base URL
-            .addConverterFactory(GsonConverterFactory.create())
-            .build()
+        val mediaRetrofit = HttpClientProvider.retrofit("$homeserver/_matrix/media/r0/")
 
         val mediaApi = mediaRetrofit.create(MediaApi::class.java)
 
-        // Prepare request
-        val requestBody = fileBytes.toRequestBody("image/jpeg".toMediaTypeOrNull())
-
         // Upload image
         val uploadResponse = mediaApi.uploadMedia(
             file = requestBody,
-            filename = "avatar.jpg",
+            filename = requestBody.fileName,
             authHeader = "Bearer $accessToken"
         )
 
@@ -344,10 +334,7 @@ class SignUp : AppCompatActivity() {
         accessToken: String
     ) {
         // Prepare Retrofit for profile updates
-        val profileRetrofit = Retrofit.Builder()
-            .baseUrl("$homeserver/_matrix/client/v3/") // Correct profile update base URL
-            .addConverterFactory(GsonConverterFactory.create())
-            .build()
+        val profileRetrofit = HttpClientProvider.retrofit("$homeserver/_matrix/client/v3/")
 
         val profileApi = profileRetrofit.create(ProfileApi::class.java)
 
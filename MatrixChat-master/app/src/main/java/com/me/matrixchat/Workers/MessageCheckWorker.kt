@@ -16,9 +16,12 @@ import androidx.work.WorkerParameters
 import com.me.matrixchat.MyApplication
 import com.me.matrixchat.R
 import com.me.matrixchat.SessionHolder
+import com.me.matrixchat.data.RoomSummaryRepository
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
 import org.matrix.android.sdk.api.session.room.RoomSortOrder
-import org.matrix.android.sdk.api.session.room.RoomSummaryQueryParams
-import org.matrix.android.sdk.api.session.room.model.Membership
 
 class MessageCheckWorker(
     context: Context,
@@ -32,21 +35,24 @@ class MessageCheckWorker(
         // TODO: Replace with how you get your active Matrix session
         val session = SessionHolder.currentSession!!
 
-        // Set up query params
-        val queryParams = RoomSummaryQueryParams.Builder().apply {
-            memberships = listOf(Membership.JOIN)
-        }.build()
-
-        val summaries = session.roomService().getRoomSummaries(queryParams, RoomSortOrder.ACTIVITY)
-
-        summaries.forEach { summary ->
-            if (summary.hasUnreadMessages) {
-                showNewMessageNotification(applicationContext, summary.displayName, "New message")
+        // Shares the query of an open room list. Otherwise reads the unread rooms once, without
+        // opening the repository: that would also start joining invites from the background
+        val repository = RoomSummaryRepository.peekInstance(session)
+        val unread = if (repository != null) {
+            withTimeoutOrNull(SUMMARIES_TIMEOUT_MS) { repository.unread.first() } ?: return Result.retry()
+        } else {
+            withContext(Dispatchers.IO) {
+                session.roomService().getRoomSummaries(RoomSummaryRepository.unreadRoomsQuery(), RoomSortOrder.ACTIVITY)
             }
         }
 
+        unread.forEach { summary ->
+            showNewMessageNotification(applicationContext, summary.displayName, "New message")
+        }
+
         return Result.success()
     }
+
     fun showNewMessageNotification(context: Context, title: String, message: String) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             val channel = NotificationChannel(
@@ -82,4 +88,7 @@ class MessageCheckWorker(
         NotificationManagerCompat.from(context).notify(title.hashCode(), builder.build())
     }
 
+    companion object {
+        private const val SUMMARIES_TIMEOUT_MS = 10_000L
+    }
 }
@@ -0,0 +1,121 @@
+package com.me.matrixchat.data
+
+import android.util.Log
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import org.matrix.android.sdk.api.failure.Failure
+import org.matrix.android.sdk.api.session.Session
+import org.matrix.android.sdk.api.session.room.model.RoomSummary
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Joins the rooms the user is invited to, for the lifetime of [scope] (the session, see
+ * RoomSummaryRepository).
+ *
+ * A room is joined once however many syncs still list the invite: it stays pending while its join
+ * runs or waits for a retry, and done once joined or abandoned, until it leaves the invites. At
+ * most [MAX_CONCURRENT_JOINS] joins run at a time. A failed join is retried with an exponential
+ * backoff, up to [MAX_ATTEMPTS] attempts, unless the server refused it.
+ */
+class InviteAutoJoiner(private val session: Session, private val scope: CoroutineScope) {
+
+    // Both guarded by the monitor of pending
+    private val pending = HashSet<String>()
+    private val done = HashSet<String>()
+
+    private val permits = Semaphore(MAX_CONCURRENT_JOINS)
+
+    // Latest invites, replaced as a whole and read without the lock
+    @Volatile
+    private var invited: Set<String> = emptySet()
+
+    private val joined = AtomicLong()
+    private val abandoned = AtomicLong()
+    private val retried = AtomicLong()
+    private val deduplicated = AtomicLong()
+
+    fun start(invites: Flow<List<RoomSummary>>) {
+        scope.launch {
+            invites.collect { summaries -> onInvites(summaries.mapTo(HashSet()) { it.roomId }) }
+        }
+    }
+
+    fun dump() {
+        Log.d(TAG, "joined=${joined.get()} abandoned=${abandoned.get()} retried=${retried.get()} " +
+                "deduplicated=${deduplicated.get()}")
+    }
+
+    private fun onInvites(roomIds: Set<String>) {
+        invited = roomIds
+        val toJoin = synchronized(pending) {
+            // A room invited again after leaving is joined again
+            done.retainAll(roomIds)
+            roomIds.filter { roomId ->
+                when {
+                    roomId in done -> false
+                    pending.add(roomId) -> true
+                    else -> {
+                        deduplicated.incrementAndGet()
+                        false
+                    }
+                }
+            }
+        }
+        toJoin.forEach { join(it) }
+    }
+
+    private fun join(roomId: String) = scope.launch {
+        var attempt = 1
+        while (true) {
+            val failure = try {
+                permits.withPermit { session.roomService().joinRoom(roomId) }
+                null
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Throwable) {
+                e
+            }
+            if (failure == null) {
+                joined.incrementAndGet()
+                break
+            }
+            if (!isRetryable(failure) || attempt == MAX_ATTEMPTS) {
+                Log.e(TAG, "Unable to join $roomId after $attempt attempts", failure)
+                abandoned.incrementAndGet()
+                break
+            }
+            delay(backoffMs(attempt))
+            if (roomId !in invited) {
+                // Joined or declined elsewhere meanwhile
+                break
+            }
+            retried.incrementAndGet()
+            attempt++
+        }
+        synchronized(pending) {
+            pending.remove(roomId)
+            done.add(roomId)
+        }
+    }
+
+    // Refused by the server (forbidden, unknown room...), except for rate limiting
+    private fun isRetryable(failure: Throwable): Boolean {
+        return failure !is Failure.ServerError || failure.httpCode == HTTP_TOO_MANY_REQUESTS || failure.httpCode >= 500
+    }
+
+    private fun backoffMs(attempt: Int) = minOf(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS shl (attempt - 1))
+
+    companion object {
+        private const val TAG = "InviteAutoJoiner"
+        const val MAX_CONCURRENT_JOINS = 3
+        const val MAX_ATTEMPTS = 5
+        private const val INITIAL_BACKOFF_MS = 2_000L
+        private const val MAX_BACKOFF_MS = 60_000L
+        private const val HTTP_TOO_MANY_REQUESTS = 429
+    }
+}
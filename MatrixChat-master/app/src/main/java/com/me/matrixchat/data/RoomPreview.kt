@@ -0,0 +1,117 @@
+package com.me.matrixchat.data
+
+import android.util.LruCache
+import com.stfalcon.chatkit.commons.models.IMessage
+import com.stfalcon.chatkit.commons.models.IUser
+import org.matrix.android.sdk.api.session.events.model.EventType
+import org.matrix.android.sdk.api.session.events.model.toModel
+import org.matrix.android.sdk.api.session.room.model.RoomSummary
+import org.matrix.android.sdk.api.session.room.model.message.MessageContent
+import org.matrix.android.sdk.api.session.room.timeline.TimelineEvent
+import java.util.Date
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The latest message of a room as shown in the room list, computed once per event.
+ *
+ * Parsing the content and disambiguating the sender name is done by [of]. The room list calls
+ * [prefetch] with the rooms of each page as it loads, so that this runs on a background thread and
+ * binding a row usually only reads fields; a row bound before its page was prefetched computes its
+ * preview during bind. Records are cached per room and event, so a sync which does not change the
+ * latest event of a room reuses its record.
+ */
+class RoomPreview private constructor(
+    private val id: String,
+    private val text: String,
+    private val user: Sender,
+    private val createdAt: Date
+) : IMessage {
+
+    class Sender(private val id: String, private val name: String, private val avatar: String?) : IUser {
+        override fun getId() = id
+
+        override fun getName() = name
+
+        override fun getAvatar() = avatar
+    }
+
+    override fun getId() = id
+
+    override fun getText() = text
+
+    override fun getUser() = user
+
+    override fun getCreatedAt() = createdAt
+
+    private data class Key(val roomId: String, val eventId: String)
+
+    companion object {
+        private const val MAX_CACHED_PREVIEWS = 1024
+        // Well below the cache size, a prefetch must not evict the rows on screen
+        private const val MAX_PREFETCHED = 200
+
+        /** Timestamp of an [empty] preview, which RoomListDateFormatter does not display. */
+        const val NO_DATE = 0L
+
+        private val cache = LruCache<Key, RoomPreview>(MAX_CACHED_PREVIEWS)
+        private val prefetchExecutor = Executors.newSingleThreadExecutor { r -> Thread(r, "room-preview") }
+        private val hits = AtomicLong()
+        private val misses = AtomicLong()
+
+        val hitCount: Long
+            get() = hits.get()
+
+        val missCount: Long
+            get() = misses.get()
+
+        /**
+         * Computes the previews of [summaries] on a background thread, at most [MAX_PREFETCHED] of
+         * them, the first ones being the ones about to be shown.
+         */
+        fun prefetch(summaries: List<RoomSummary>) {
+            if (summaries.isEmpty()) return
+            val batch = if (summaries.size > MAX_PREFETCHED) summaries.subList(0, MAX_PREFETCHED).toList() else summaries
+            prefetchExecutor.execute {
+                batch.forEach { summary -> summary.latestPreviewableEvent?.let { of(summary.roomId, it) } }
+            }
+        }
+
+        /** Preview of [event], the latest previewable event of [roomId]. */
+        fun of(roomId: String, event: TimelineEvent): RoomPreview {
+            val key = Key(roomId, event.eventId)
+            val senderInfo = event.senderInfo
+            val cached = cache.get(key)
+            // The disambiguated display name, as stored: it also changes when another member takes the same name
+            if (cached != null &&
+                cached.user.getName() == senderInfo.disambiguatedDisplayName &&
+                cached.user.getAvatar() == senderInfo.avatarUrl
+            ) {
+                hits.incrementAndGet()
+                return cached
+            }
+            misses.incrementAndGet()
+            val preview = RoomPreview(
+                id = event.localId.toString(),
+                text = textOf(event),
+                user = Sender(senderInfo.userId, senderInfo.disambiguatedDisplayName, senderInfo.avatarUrl),
+                createdAt = Date(event.root.originServerTs ?: 0)
+            )
+            // Not decrypted yet, the text will change once it is
+            if (event.root.getClearType() != EventType.ENCRYPTED) {
+                cache.put(key, preview)
+            }
+            return preview
+        }
+
+        /** Preview of a room without any previewable event, dated [NO_DATE]. */
+        fun empty(roomId: String) = RoomPreview(roomId, "", Sender("", "", null), Date(NO_DATE))
+
+        private fun textOf(event: TimelineEvent): String {
+            return when (event.root.getClearType()) {
+                EventType.MESSAGE -> event.root.getClearContent().toModel<MessageContent>()?.body ?: ""
+                else -> ""
+            }
+        }
+    }
+}
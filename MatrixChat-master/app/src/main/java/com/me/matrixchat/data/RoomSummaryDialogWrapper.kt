@@ -20,7 +20,16 @@ import com.stfalcon.chatkit.commons.models.IDialog
 import com.stfalcon.chatkit.commons.models.IUser
 import org.matrix.android.sdk.api.session.room.model.RoomSummary
 
-class RoomSummaryDialogWrapper(val roomSummary: RoomSummary) : IDialog<TimelineEventMessageWrapper> {
+/**
+ * A row of the room list. Everything a row shows is read from [roomSummary] when the wrapper is
+ * created, and the preview of the latest event comes from the cache of [RoomPreview], so binding
+ * the same room again never parses an event.
+ */
+class RoomSummaryDialogWrapper(val roomSummary: RoomSummary) : IDialog<RoomPreview> {
+
+    // The paged list cannot leave out rooms without a previewable event, ChatKit needs a message
+    private val lastMessage = roomSummary.latestPreviewableEvent?.let { RoomPreview.of(roomSummary.roomId, it) }
+        ?: RoomPreview.empty(roomSummary.roomId)
 
     override fun getId() = roomSummary.roomId
 
@@ -29,14 +38,18 @@ class RoomSummaryDialogWrapper(val roomSummary: RoomSummary) : IDialog<TimelineE
     override fun getDialogName() = roomSummary.displayName
 
     override fun getUsers(): MutableList<out IUser> {
-        return ArrayList<TimelineEventSenderWrapper>()
+        return NO_USERS
     }
 
-    override fun getLastMessage() = roomSummary.latestPreviewableEvent?.let { TimelineEventMessageWrapper(it) }
+    override fun getLastMessage() = lastMessage
 
-    override fun setLastMessage(message: TimelineEventMessageWrapper?) {
+    override fun setLastMessage(message: RoomPreview?) {
         // noop
     }
 
     override fun getUnreadCount() = roomSummary.notificationCount
+
+    private companion object {
+        val NO_USERS = ArrayList<IUser>(0)
+    }
 }
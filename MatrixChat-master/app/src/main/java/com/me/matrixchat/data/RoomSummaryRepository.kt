@@ -0,0 +1,261 @@
+package com.me.matrixchat.data
+
+import android.util.Log
+import androidx.lifecycle.LiveData
+import androidx.lifecycle.Observer
+import androidx.paging.PagedList
+import com.me.matrixchat.utils.RoomFilterIndex
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.SharingStarted
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.filterNotNull
+import kotlinx.coroutines.flow.flatMapLatest
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOf
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.stateIn
+import org.matrix.android.sdk.api.query.RoomCategoryFilter
+import org.matrix.android.sdk.api.session.Session
+import org.matrix.android.sdk.api.session.room.RoomSortOrder
+import org.matrix.android.sdk.api.session.room.RoomSummaryQueryParams
+import org.matrix.android.sdk.api.session.room.model.Membership
+import org.matrix.android.sdk.api.session.room.model.RoomSummary
+import org.matrix.android.sdk.api.session.room.roomSummaryQueryParams
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The room summaries of a session, from live queries shared by every screen and worker.
+ *
+ * No query holds every room for the lifetime of the session. [unread] and [invites] each observe
+ * a query of their own, bounded by the number of unread rooms and invites, and only while
+ * collected. The room list reads [pagedRooms], which only loads the rooms around the visible rows.
+ *
+ * [filter] needs the names of every room for its [RoomFilterIndex], so its query cannot be
+ * bounded. The tradeoff: it only runs while the user searches, that is while the query is not
+ * blank or the search box has focus, plus [FILTER_KEEP_ALIVE_MS] so that clearing and retyping does
+ * not rebuild the index. Focusing the search box starts it, so the first keystroke usually finds
+ * the index built, and each sync only re-derives the terms of the rooms whose name, aliases or
+ * direct user changed. The rest of the time the room list only holds its pages: the query ends and
+ * the index is dropped with it, its size logged.
+ *
+ * Emissions are conflated and equal lists dropped, so each flow only emits when it actually
+ * changes. Invites are joined by an [InviteAutoJoiner] for as long as the repository is open.
+ */
+class RoomSummaryRepository private constructor(private val session: Session) {
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+
+    private val received = AtomicLong()
+
+    /** Joined rooms with unread notifications, most recent activity first. */
+    val unread: Flow<List<RoomSummary>> = share(unreadRoomsQuery())
+
+    /** Rooms the user is invited to. */
+    val invites: Flow<List<RoomSummary>> = share(
+        roomSummaryQueryParams { memberships = listOf(Membership.INVITE) }
+    )
+
+    private val autoJoiner = InviteAutoJoiner(session, scope).also { it.start(invites) }
+
+    private class IndexedRooms(val index: RoomFilterIndex, val summaries: List<RoomSummary>)
+
+    // Every active room with an index up to date with them. Back to null once nothing filters any
+    // more, the index goes with the query which fed it
+    private val indexedRooms: StateFlow<IndexedRooms?> = flow {
+        val index = RoomFilterIndex()
+        // The summaries the index was last synced with
+        var indexed = HashMap<String, RoomSummary>()
+        try {
+            emitAll(liveQuery(activeRoomsQuery()).map { summaries ->
+                indexed = syncIndex(index, indexed, summaries)
+                IndexedRooms(index, summaries)
+            })
+        } finally {
+            Log.d(TAG, "Dropping the filter index of ${index.size} rooms")
+        }
+    }.stateIn(scope, SharingStarted.WhileSubscribed(FILTER_KEEP_ALIVE_MS, 0), null)
+
+    /**
+     * Joined and invited rooms, most recent activity first, loaded a page at a time around the
+     * rows read from it. Shared by every room list of the session, so reopening one shows the
+     * pages already loaded.
+     */
+    val pagedRooms: LiveData<PagedList<RoomSummary>> by lazy {
+        val config = PagedList.Config.Builder()
+            .setPageSize(PAGE_SIZE)
+            .setInitialLoadSizeHint(INITIAL_LOAD_SIZE)
+            .setPrefetchDistance(PREFETCH_DISTANCE)
+            // Placeholders keep the scrollbar and positions right without loading every room
+            .setEnablePlaceholders(true)
+            .setMaxSize(MAX_LOADED_ROOMS)
+            .build()
+        session.roomService().getPagedRoomSummariesLive(activeRoomsQuery(), config, RoomSortOrder.ACTIVITY)
+    }
+
+    /** Number of lists emitted by the live queries, before conflation. */
+    val receivedCount: Long
+        get() = received.get()
+
+    /**
+     * Rooms matching the latest [query], most recent activity first, updated as the query or the
+     * rooms change. Null while the query is blank, when the list is not filtered. The filter index
+     * is only kept up to date while the query is not blank or [searching] is true, to have it
+     * built by the first keystroke.
+     */
+    @OptIn(ExperimentalCoroutinesApi::class)
+    fun filter(query: Flow<String>, searching: Flow<Boolean>): Flow<List<RoomSummary>?> {
+        return combine(query.map { it.trim() }, searching) { text, focused -> text to focused }
+            .distinctUntilChanged()
+            .flatMapLatest { (text, focused) ->
+                when {
+                    // A filter typed before the index is built waits for it
+                    text.isNotEmpty() -> indexedRooms.filterNotNull().map { rooms ->
+                        val matches = rooms.index.search(text)
+                        rooms.summaries.filter { it.roomId in matches }
+                    }
+                    // Builds the index ahead of the first keystroke
+                    focused -> indexedRooms.map { null }
+                    else -> flowOf(null)
+                }
+            }
+            .distinctUntilChanged()
+            .flowOn(Dispatchers.Default)
+    }
+
+    // Incremental: a room whose terms cannot have changed is not looked at again
+    private fun syncIndex(
+        index: RoomFilterIndex,
+        indexed: Map<String, RoomSummary>,
+        summaries: List<RoomSummary>
+    ): HashMap<String, RoomSummary> {
+        val current = HashMap<String, RoomSummary>(summaries.size)
+        for (summary in summaries) {
+            val previous = indexed[summary.roomId]
+            if (previous == null || !hasSameFilterTerms(previous, summary)) {
+                index.update(summary.roomId, filterTerms(summary))
+            }
+            current[summary.roomId] = summary
+        }
+        indexed.keys.filter { it !in current }.forEach { index.remove(it) }
+        return current
+    }
+
+    private fun hasSameFilterTerms(previous: RoomSummary, summary: RoomSummary): Boolean {
+        return previous.displayName == summary.displayName &&
+                previous.canonicalAlias == summary.canonicalAlias &&
+                previous.aliases == summary.aliases &&
+                previous.isDirect == summary.isDirect &&
+                previous.directUserId == summary.directUserId
+    }
+
+    // What the filter matches: the name, the aliases and the other user of a direct chat
+    private fun filterTerms(summary: RoomSummary): List<String> {
+        return buildList {
+            add(summary.displayName)
+            summary.canonicalAlias?.let { add(it) }
+            addAll(summary.aliases)
+            if (summary.isDirect) {
+                summary.directUserId?.let { add(it) }
+            }
+        }
+    }
+
+    private fun activeRoomsQuery() = roomSummaryQueryParams {
+        memberships = Membership.activeMemberships()
+    }
+
+    // Observed on the main thread as LiveData requires, from the first collector until the last one
+    // is gone. Conflated: a slow consumer only ever gets the latest list
+    private fun liveQuery(params: RoomSummaryQueryParams): Flow<List<RoomSummary>> {
+        return callbackFlow {
+            val live = session.roomService().getRoomSummariesLive(params, RoomSortOrder.ACTIVITY)
+            val observer = Observer<List<RoomSummary>> {
+                received.incrementAndGet()
+                trySend(it)
+            }
+            live.observeForever(observer)
+            awaitClose { live.removeObserver(observer) }
+        }
+            .flowOn(Dispatchers.Main)
+            .conflate()
+            .distinctUntilChanged()
+    }
+
+    // The query stops with its last collector, and its last list is dropped: a new collector only
+    // gets a list read after it started
+    private fun share(params: RoomSummaryQueryParams): Flow<List<RoomSummary>> {
+        return liveQuery(params)
+            .stateIn(scope, SharingStarted.WhileSubscribed(replayExpirationMillis = 0), null)
+            .filterNotNull()
+    }
+
+    /** Stops the live queries, the repository cannot be used afterwards. */
+    fun close() {
+        Log.d(TAG, "Closing after $receivedCount room summary emissions")
+        autoJoiner.dump()
+        // The observers are removed on the main thread as their queries complete
+        scope.cancel()
+    }
+
+    companion object {
+        private const val TAG = "RoomSummaryRepository"
+
+        // A screen shows about ten rooms
+        private const val PAGE_SIZE = 20
+        private const val INITIAL_LOAD_SIZE = 40
+        private const val PREFETCH_DISTANCE = 30
+        // Pages further away are dropped again, at least PAGE_SIZE + 2 * PREFETCH_DISTANCE
+        private const val MAX_LOADED_ROOMS = 200
+
+        // Long enough for a configuration change or a quick trip to a room
+        private const val FILTER_KEEP_ALIVE_MS = 5_000L
+
+        /** Joined rooms with unread notifications, as read by [unread]. */
+        fun unreadRoomsQuery() = roomSummaryQueryParams {
+            memberships = listOf(Membership.JOIN)
+            roomCategoryFilter = RoomCategoryFilter.ONLY_WITH_NOTIFICATIONS
+        }
+
+        @Volatile
+        private var instance: RoomSummaryRepository? = null
+
+        /** Repository of [session], the one of a previous session is closed. */
+        fun getInstance(session: Session): RoomSummaryRepository {
+            instance?.takeIf { it.session.sessionId == session.sessionId }?.let { return it }
+            return synchronized(this) {
+                val current = instance
+                if (current != null && current.session.sessionId == session.sessionId) {
+                    current
+                } else {
+                    current?.close()
+                    RoomSummaryRepository(session).also { instance = it }
+                }
+            }
+        }
+
+        /** Repository of [session] if one is open, without opening one. */
+        fun peekInstance(session: Session): RoomSummaryRepository? {
+            return instance?.takeIf { it.session.sessionId == session.sessionId }
+        }
+
+        /** Closes the repository of the current session, on sign out. */
+        fun release() {
+            synchronized(this) {
+                instance?.close()
+                instance = null
+            }
+        }
+    }
+}
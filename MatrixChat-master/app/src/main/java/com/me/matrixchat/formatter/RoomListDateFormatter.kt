@@ -16,13 +16,16 @@
 
 package com.me.matrixchat.formatter
 
+import com.me.matrixchat.data.RoomPreview
 import com.stfalcon.chatkit.utils.DateFormatter
 import java.util.*
 
 class RoomListDateFormatter : DateFormatter.Formatter {
 
     override fun format(date: Date): String {
-        return if (DateFormatter.isToday(date)) {
+        return if (date.time == RoomPreview.NO_DATE) {
+            ""
+        } else if (DateFormatter.isToday(date)) {
             DateFormatter.format(date, DateFormatter.Template.TIME)
         } else if (DateFormatter.isYesterday(date)) {
             "Yesterday"
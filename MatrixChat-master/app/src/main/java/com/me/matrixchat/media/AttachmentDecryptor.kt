@@ -0,0 +1,156 @@
+package com.me.matrixchat.media
+
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.security.MessageDigest
+import java.util.concurrent.ArrayBlockingQueue
+import javax.crypto.Cipher
+
+/**
+ * Single pass decryption of attachments: every chunk of ciphertext is fed to the SHA-256 digest
+ * and to the AES-CTR cipher, then written, with large pooled buffers. A CipherInputStream
+ * copy reads through a 512 byte internal buffer and needs a second pass to hash the ciphertext.
+ *
+ * Plain JVM on purpose (no android.* import), so that AttachmentDecryptorTest runs with the unit
+ * tests. Its throughput is measured on a device by the instrumented AttachmentDecryptBenchmark.
+ */
+object AttachmentDecryptor {
+
+    const val BUFFER_SIZE = 256 * 1024
+    private const val CIPHER_BLOCK_SIZE = 16
+    private const val MAX_POOLED_BUFFERS = 4
+
+    private const val BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+
+    /**
+     * The content does not match the `hashes.sha256` of its EncryptedFileInfo.
+     */
+    class IntegrityException(message: String) : IOException(message)
+
+    fun interface ChunkListener {
+        fun onChunk(length: Int)
+    }
+
+    private class Buffers {
+        val input = ByteArray(BUFFER_SIZE)
+        val output = ByteArray(BUFFER_SIZE + CIPHER_BLOCK_SIZE)
+    }
+
+    private val pool = ArrayBlockingQueue<Buffers>(MAX_POOLED_BUFFERS)
+
+    @JvmStatic
+    fun newDigest(): MessageDigest = MessageDigest.getInstance("SHA-256")
+
+    /**
+     * Decrypts [input] into [output] with [cipher], feeding the ciphertext to [digest] on the way.
+     * [cipherTextCopy], if any, also receives the ciphertext as is, for the [AttachmentDiskCache].
+     * [listener] is told about each chunk once it has been written. Returns the number of bytes written.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun decrypt(
+        input: InputStream,
+        output: OutputStream,
+        cipher: Cipher,
+        digest: MessageDigest?,
+        cipherTextCopy: OutputStream? = null,
+        listener: ChunkListener? = null
+    ): Long {
+        val buffers = pool.poll() ?: Buffers()
+        try {
+            var total = 0L
+            while (true) {
+                val read = input.read(buffers.input)
+                if (read == -1) break
+                digest?.update(buffers.input, 0, read)
+                cipherTextCopy?.write(buffers.input, 0, read)
+                val length = cipher.update(buffers.input, 0, read, buffers.output)
+                output.write(buffers.output, 0, length)
+                total += length
+                listener?.onChunk(length)
+            }
+            val length = cipher.doFinal(buffers.output, 0)
+            if (length > 0) {
+                output.write(buffers.output, 0, length)
+                total += length
+                listener?.onChunk(length)
+            }
+            return total
+        } finally {
+            pool.offer(buffers)
+        }
+    }
+
+    /**
+     * Copies the ciphertext [input] to [output] as is, feeding it to [digest] on the way. With a null
+     * [output] it is only hashed, to resume the hash of a partial download. Returns the number of bytes read.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun copy(
+        input: InputStream,
+        output: OutputStream?,
+        digest: MessageDigest,
+        listener: ChunkListener? = null
+    ): Long {
+        val buffers = pool.poll() ?: Buffers()
+        try {
+            var total = 0L
+            while (true) {
+                val read = input.read(buffers.input)
+                if (read == -1) break
+                digest.update(buffers.input, 0, read)
+                output?.write(buffers.input, 0, read)
+                total += read
+                listener?.onChunk(read)
+            }
+            return total
+        } finally {
+            pool.offer(buffers)
+        }
+    }
+
+    /**
+     * Returns [sha256], the `hashes.sha256` of the EncryptedFileInfo of [mxcUri]. The spec requires
+     * it, and an attachment without one cannot be verified: it is rejected with an
+     * [IntegrityException] before anything is downloaded or read from the cache.
+     */
+    @JvmStatic
+    @Throws(IntegrityException::class)
+    fun requireSha256(mxcUri: String, sha256: String?): String {
+        return sha256 ?: throw IntegrityException("No sha256 for $mxcUri, its content cannot be verified")
+    }
+
+    /**
+     * Throws an [IntegrityException] unless [digest] matches [expectedSha256], the unpadded base64
+     * `hashes.sha256` of the EncryptedFileInfo.
+     */
+    @JvmStatic
+    @Throws(IntegrityException::class)
+    fun verify(digest: MessageDigest, expectedSha256: String) {
+        val actual = encodeUnpaddedBase64(digest.digest())
+        // Some clients send the url safe alphabet or keep the padding
+        val expected = expectedSha256.trimEnd('=').replace('-', '+').replace('_', '/')
+        if (actual != expected) {
+            throw IntegrityException("sha256 mismatch, expected $expected but got $actual")
+        }
+    }
+
+    // java.util.Base64 needs API 26 and android.util.Base64 is not available on the JVM
+    private fun encodeUnpaddedBase64(bytes: ByteArray): String {
+        val builder = StringBuilder((bytes.size * 4 + 2) / 3)
+        var i = 0
+        while (i < bytes.size) {
+            val b0 = bytes[i].toInt() and 0xff
+            val b1 = if (i + 1 < bytes.size) bytes[i + 1].toInt() and 0xff else 0
+            val b2 = if (i + 2 < bytes.size) bytes[i + 2].toInt() and 0xff else 0
+            builder.append(BASE64_ALPHABET[b0 shr 2])
+            builder.append(BASE64_ALPHABET[((b0 and 0x03) shl 4) or (b1 shr 4)])
+            if (i + 1 < bytes.size) builder.append(BASE64_ALPHABET[((b1 and 0x0f) shl 2) or (b2 shr 6)])
+            if (i + 2 < bytes.size) builder.append(BASE64_ALPHABET[b2 and 0x3f])
+            i += 3
+        }
+        return builder.toString()
+    }
+}
@@ -0,0 +1,175 @@
+package com.me.matrixchat.media
+
+import android.content.Context
+import android.util.Log
+import java.io.File
+import java.io.IOException
+import java.io.OutputStream
+import java.security.MessageDigest
+
+/**
+ * Size bounded disk cache of encrypted attachments.
+ *
+ * Entries hold the verified ciphertext, as downloaded, and are decrypted when read with
+ * [EncryptedFileModel.openDecrypted]: the plaintext is never written to disk.
+ *
+ * Entries are keyed by mxc uri, so the same attachment is stored once whatever the room or the
+ * file name chosen by the sender. Each entry also records the `hashes.sha256` of the
+ * EncryptedFileInfo it was downloaded for, and is only returned for that same hash. The least
+ * recently used entries are evicted once [maxBytes] is exceeded, and the index is persisted next
+ * to the files so the cache survives restarts.
+ */
+class AttachmentDiskCache private constructor(
+    private val directory: File,
+    private val maxBytes: Long
+) {
+
+    private class Entry(val sha256: String?, val size: Long)
+
+    private val indexFile = File(directory, INDEX_FILE_NAME)
+
+    // Iteration order is least recently used first
+    private val entries = LinkedHashMap<String, Entry>(16, 0.75f, true)
+    private var totalBytes = 0L
+
+    init {
+        directory.mkdirs()
+        readIndex()
+        deleteUnindexedFiles()
+    }
+
+    /**
+     * Returns the ciphertext file for [mxcUri], or null when it has to be downloaded.
+     */
+    @Synchronized
+    fun get(mxcUri: String, sha256: String?): File? {
+        val key = keyFor(mxcUri)
+        val entry = entries[key] ?: return null
+        val file = File(directory, key)
+        if (entry.sha256 != sha256 || !file.exists()) {
+            remove(key)
+            writeIndex()
+            return null
+        }
+        // The access order is only persisted with the next change, no write on hits
+        return file
+    }
+
+    /**
+     * Stores the ciphertext of [mxcUri] written by [writer]. The entry is only committed
+     * once [writer] returns, a failure leaves the cache untouched.
+     */
+    fun put(mxcUri: String, sha256: String?, writer: (OutputStream) -> Unit): File {
+        val tmpFile = File.createTempFile(keyFor(mxcUri), ".tmp", directory)
+        try {
+            tmpFile.outputStream().use(writer)
+        } catch (e: Throwable) {
+            tmpFile.delete()
+            throw e
+        }
+        return commit(mxcUri, sha256, tmpFile)
+    }
+
+    /**
+     * Moves the complete and verified ciphertext [source] into the cache as the content of [mxcUri].
+     * [source] must be on the same file system as the cache, it is renamed and not copied.
+     */
+    fun commit(mxcUri: String, sha256: String?, source: File): File {
+        val key = keyFor(mxcUri)
+        synchronized(this) {
+            val file = File(directory, key)
+            remove(key)
+            if (!source.renameTo(file)) {
+                source.delete()
+                throw IOException("Unable to commit $mxcUri to the attachment cache")
+            }
+            entries[key] = Entry(sha256, file.length())
+            totalBytes += file.length()
+            trimToSize()
+            writeIndex()
+            return file
+        }
+    }
+
+    private fun remove(key: String) {
+        val entry = entries.remove(key) ?: return
+        totalBytes -= entry.size
+        File(directory, key).delete()
+    }
+
+    private fun trimToSize() {
+        val iterator = entries.entries.iterator()
+        // Never evict the entry which has just been added
+        while (totalBytes > maxBytes && entries.size > 1 && iterator.hasNext()) {
+            val (key, entry) = iterator.next()
+            iterator.remove()
+            totalBytes -= entry.size
+            File(directory, key).delete()
+        }
+    }
+
+    private fun readIndex() {
+        if (!indexFile.exists()) return
+        try {
+            indexFile.forEachLine { line ->
+                val parts = line.split('\t')
+                if (parts.size != 3) return@forEachLine
+                val file = File(directory, parts[0])
+                if (file.exists()) {
+                    val size = parts[2].toLongOrNull() ?: file.length()
+                    entries[parts[0]] = Entry(parts[1].ifEmpty { null }, size)
+                    totalBytes += size
+                }
+            }
+        } catch (e: IOException) {
+            Log.e("AttachmentDiskCache", "Unable to read the cache index", e)
+        }
+        trimToSize()
+    }
+
+    // Leftovers of downloads interrupted by the process being killed
+    private fun deleteUnindexedFiles() {
+        directory.listFiles()?.forEach { file ->
+            if (file.name != INDEX_FILE_NAME && !entries.containsKey(file.name)) {
+                file.delete()
+            }
+        }
+    }
+
+    private fun writeIndex() {
+        try {
+            val tmpIndex = File(directory, "$INDEX_FILE_NAME.tmp")
+            tmpIndex.bufferedWriter().use { writer ->
+                entries.forEach { (key, entry) ->
+                    writer.write("$key\t${entry.sha256.orEmpty()}\t${entry.size}\n")
+                }
+            }
+            tmpIndex.renameTo(indexFile)
+        } catch (e: IOException) {
+            Log.e("AttachmentDiskCache", "Unable to write the cache index", e)
+        }
+    }
+
+    internal fun keyFor(mxcUri: String): String {
+        val digest = MessageDigest.getInstance("SHA-256").digest(mxcUri.toByteArray(Charsets.UTF_8))
+        return digest.joinToString("") { "%02x".format(it) }
+    }
+
+    companion object {
+        private const val DIRECTORY_NAME = "attachments"
+        private const val INDEX_FILE_NAME = "index"
+        private const val DEFAULT_MAX_BYTES = 100L * 1024 * 1024
+
+        @Volatile
+        private var instance: AttachmentDiskCache? = null
+
+        fun getInstance(context: Context): AttachmentDiskCache {
+            return instance ?: synchronized(this) {
+                instance ?: AttachmentDiskCache(
+                    File(context.applicationContext.cacheDir, DIRECTORY_NAME),
+                    DEFAULT_MAX_BYTES
+                ).also { instance = it }
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.me.matrixchat.media
+
+import android.content.Context
+import android.util.Log
+import com.me.matrixchat.network.HttpClientProvider
+import okhttp3.Call
+import okhttp3.Response
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.security.MessageDigest
+import java.util.Properties
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Resumable downloads of encrypted attachments into the [AttachmentDiskCache].
+ *
+ * The ciphertext is appended to a partial file as it is received and the number of bytes safely
+ * on disk is checkpointed next to it. After a network drop, a cancellation or the process being
+ * killed, the next download of the same attachment asks for the rest only, with an HTTP Range
+ * request, and appends it: the checkpoint is just a byte offset. A server which ignores the range,
+ * or whose content changed (If-Range), restarts it from 0. The ciphertext is checked against
+ * `hashes.sha256` before the file is committed to the cache, an attachment without one is not
+ * downloaded at all. It is only decrypted when it is read,
+ * see [EncryptedFileModel.openDecrypted]. No plaintext is ever written to disk.
+ */
+class AttachmentDownloader private constructor(
+    private val client: Call.Factory,
+    private val diskCache: AttachmentDiskCache,
+    private val directory: File
+) {
+
+    fun interface ProgressListener {
+        /** [total] is -1 while unknown. */
+        fun onProgress(downloaded: Long, total: Long)
+    }
+
+    private class Progress(
+        val mxcUri: String,
+        val sha256: String?,
+        var offset: Long,
+        var total: Long,
+        var validator: String?
+    )
+
+    // One lock per attachment, two downloads of the same attachment must not share a partial file
+    private val locks = ConcurrentHashMap<String, Any>()
+
+    init {
+        directory.mkdirs()
+        deleteAbandonedPartials()
+    }
+
+    fun newDownload(model: EncryptedFileModel, listener: ProgressListener? = null) = Download(model, listener)
+
+    inner class Download internal constructor(
+        private val model: EncryptedFileModel,
+        private val listener: ProgressListener?
+    ) {
+
+        @Volatile
+        private var call: Call? = null
+
+        @Volatile
+        private var cancelled = false
+
+        /**
+         * Stops the download, what has been received so far is kept for the next attempt.
+         */
+        fun cancel() {
+            cancelled = true
+            call?.cancel()
+        }
+
+        /**
+         * Blocking, returns the ciphertext file once it has been verified and committed to the cache.
+         */
+        @Throws(IOException::class)
+        fun execute(): File {
+            AttachmentDecryptor.requireSha256(model.mxcUri, model.sha256)
+            diskCache.get(model.mxcUri, model.sha256)?.let { return it }
+            val key = diskCache.keyFor(model.mxcUri)
+            synchronized(locks.getOrPut(key) { Any() }) {
+                // Another download of the same attachment may have completed meanwhile
+                diskCache.get(model.mxcUri, model.sha256)?.let { return it }
+                return download(key)
+            }
+        }
+
+        private fun download(key: String): File {
+            val partFile = File(directory, "$key$PART_SUFFIX")
+            val progressFile = File(directory, "$key$PROGRESS_SUFFIX")
+            val progress = readProgress(progressFile)
+                ?.takeIf { it.mxcUri == model.mxcUri && it.sha256 == model.sha256 && partFile.length() >= it.offset }
+                ?: Progress(model.mxcUri, model.sha256, 0, -1, null)
+            // Only the checkpointed bytes are trusted, anything written after it may be incomplete
+            truncate(partFile, progress.offset)
+
+            var attempt = 0
+            while (true) {
+                attempt++
+                val resumeFrom = progress.offset
+                if (resumeFrom > 0) {
+                    Log.d(TAG, "Resuming ${model.mxcUri} at $resumeFrom/${progress.total}")
+                }
+                execute(resumeFrom, progress.validator).use { response ->
+                    when {
+                        response.code == HTTP_PARTIAL_CONTENT && contentRangeStart(response) == resumeFrom -> {
+                            progress.total = contentRangeTotal(response) ?: progress.total
+                        }
+                        (response.code == HTTP_PARTIAL_CONTENT || response.code == HTTP_RANGE_NOT_SATISFIABLE) &&
+                            resumeFrom > 0 && attempt == 1 -> {
+                            // Not the range which was asked for, or a stale checkpoint: start over
+                            restart(partFile, progressFile, progress)
+                            return@use
+                        }
+                        response.code == HTTP_OK -> {
+                            // A full response: the range is not supported or the content changed
+                            if (resumeFrom > 0) {
+                                restart(partFile, progressFile, progress)
+                            }
+                            progress.total = response.body?.contentLength() ?: -1
+                            progress.validator = response.header("ETag") ?: response.header("Last-Modified")
+                        }
+                        else -> throw IOException("Download of ${model.mxcUri} failed with HTTP ${response.code}")
+                    }
+                    val digest = receive(response, partFile, progressFile, progress)
+                    return commit(partFile, progressFile, progress, digest)
+                }
+            }
+        }
+
+        private fun execute(offset: Long, validator: String?): Response {
+            val builder = MediaUrlResolver.newRequest(MxcMediaModel.fullSize(model.mxcUri))
+                ?: throw IOException("Unable to resolve ${model.mxcUri}")
+            val request = builder.apply {
+                if (offset > 0) {
+                    header("Range", "bytes=$offset-")
+                    validator?.let { header("If-Range", it) }
+                }
+            }.build()
+            val call = client.newCall(request)
+            this.call = call
+            if (cancelled) {
+                call.cancel()
+            }
+            return call.execute()
+        }
+
+        private fun receive(
+            response: Response,
+            partFile: File,
+            progressFile: File,
+            progress: Progress
+        ): MessageDigest {
+            val body = response.body ?: throw IOException("Empty response for ${model.mxcUri}")
+            val digest = resumeDigest(partFile, progress.offset)
+            var sinceCheckpoint = 0L
+            FileOutputStream(partFile, true).use { output ->
+                try {
+                    body.byteStream().use { input ->
+                        AttachmentDecryptor.copy(input, output, digest) { length ->
+                            progress.offset += length
+                            sinceCheckpoint += length
+                            if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+                                checkpoint(output, progressFile, progress)
+                                sinceCheckpoint = 0
+                            }
+                            listener?.onProgress(progress.offset, progress.total)
+                        }
+                    }
+                    output.fd.sync()
+                } catch (e: IOException) {
+                    // Keep what has been received for the next attempt
+                    checkpoint(output, progressFile, progress)
+                    throw e
+                }
+            }
+            return digest
+        }
+
+        // The hash is over the whole ciphertext, catch up with the bytes of the previous attempts
+        private fun resumeDigest(partFile: File, offset: Long): MessageDigest {
+            val digest = AttachmentDecryptor.newDigest()
+            if (offset > 0) {
+                partFile.inputStream().use { AttachmentDecryptor.copy(it, null, digest) }
+            }
+            return digest
+        }
+
+        private fun commit(partFile: File, progressFile: File, progress: Progress, digest: MessageDigest): File {
+            if (progress.total >= 0 && progress.offset != progress.total) {
+                throw IOException("Download of ${model.mxcUri} ended at ${progress.offset}/${progress.total}")
+            }
+            try {
+                AttachmentDecryptor.verify(digest, AttachmentDecryptor.requireSha256(model.mxcUri, model.sha256))
+            } catch (e: AttachmentDecryptor.IntegrityException) {
+                // Never resume from corrupted or tampered bytes
+                restart(partFile, progressFile, progress)
+                throw e
+            }
+            progressFile.delete()
+            return diskCache.commit(model.mxcUri, model.sha256, partFile)
+        }
+    }
+
+    private fun checkpoint(output: FileOutputStream, progressFile: File, progress: Progress) {
+        try {
+            // The data must be on disk before the checkpoint which refers to it
+            output.fd.sync()
+            writeProgress(progressFile, progress)
+        } catch (e: IOException) {
+            Log.e(TAG, "Unable to checkpoint ${progress.mxcUri}", e)
+        }
+    }
+
+    private fun restart(partFile: File, progressFile: File, progress: Progress) {
+        truncate(partFile, 0)
+        progressFile.delete()
+        progress.offset = 0
+        progress.total = -1
+        progress.validator = null
+    }
+
+    private fun truncate(file: File, length: Long) {
+        RandomAccessFile(file, "rw").use { it.setLength(length) }
+    }
+
+    private fun readProgress(file: File): Progress? {
+        if (!file.exists()) return null
+        return try {
+            val properties = Properties().apply { file.inputStream().use { load(it) } }
+            Progress(
+                mxcUri = properties.getProperty(KEY_MXC_URI) ?: return null,
+                sha256 = properties.getProperty(KEY_SHA256)?.ifEmpty { null },
+                offset = properties.getProperty(KEY_OFFSET)?.toLongOrNull() ?: return null,
+                total = properties.getProperty(KEY_TOTAL)?.toLongOrNull() ?: -1,
+                validator = properties.getProperty(KEY_VALIDATOR)?.ifEmpty { null }
+            )
+        } catch (e: IOException) {
+            Log.e(TAG, "Unable to read $file", e)
+            null
+        } catch (e: IllegalArgumentException) {
+            // Malformed \uXXXX escape in a file torn by a crash
+            null
+        }
+    }
+
+    private fun writeProgress(file: File, progress: Progress) {
+        val properties = Properties().apply {
+            setProperty(KEY_MXC_URI, progress.mxcUri)
+            setProperty(KEY_SHA256, progress.sha256.orEmpty())
+            setProperty(KEY_OFFSET, progress.offset.toString())
+            setProperty(KEY_TOTAL, progress.total.toString())
+            setProperty(KEY_VALIDATOR, progress.validator.orEmpty())
+        }
+        val tmpFile = File(file.parentFile, "${file.name}.tmp")
+        FileOutputStream(tmpFile).use {
+            properties.store(it, null)
+            it.fd.sync()
+        }
+        tmpFile.renameTo(file)
+    }
+
+    private fun deleteAbandonedPartials() {
+        val expiry = System.currentTimeMillis() - MAX_PARTIAL_AGE_MS
+        directory.listFiles()?.forEach { file ->
+            if (file.lastModified() < expiry) {
+                file.delete()
+            }
+        }
+    }
+
+    private fun contentRangeStart(response: Response): Long? =
+        CONTENT_RANGE.find(response.header("Content-Range").orEmpty())?.groupValues?.get(1)?.toLongOrNull()
+
+    private fun contentRangeTotal(response: Response): Long? =
+        CONTENT_RANGE.find(response.header("Content-Range").orEmpty())?.groupValues?.get(3)?.toLongOrNull()
+
+    companion object {
+        private const val TAG = "AttachmentDownloader"
+
+        /** Attachments smaller than this are not worth a partial file, they are simply fetched again. */
+        const val RESUMABLE_MIN_SIZE = 1L * 1024 * 1024
+
+        private const val DIRECTORY_NAME = "attachments-partial"
+        private const val PART_SUFFIX = ".part"
+        private const val PROGRESS_SUFFIX = ".progress"
+
+        private const val CHECKPOINT_BYTES = 512L * 1024
+        private val MAX_PARTIAL_AGE_MS = TimeUnit.DAYS.toMillis(7)
+
+        private const val HTTP_OK = 200
+        private const val HTTP_PARTIAL_CONTENT = 206
+        private const val HTTP_RANGE_NOT_SATISFIABLE = 416
+
+        private const val KEY_MXC_URI = "mxc"
+        private const val KEY_SHA256 = "sha256"
+        private const val KEY_OFFSET = "offset"
+        private const val KEY_TOTAL = "total"
+        private const val KEY_VALIDATOR = "validator"
+
+        // bytes <start>-<end>/<total or *>
+        private val CONTENT_RANGE = Regex("""bytes (\d+)-(\d+)/(\d+|\*)""")
+
+        @Volatile
+        private var instance: AttachmentDownloader? = null
+
+        fun getInstance(context: Context): AttachmentDownloader {
+            return instance ?: synchronized(this) {
+                instance ?: AttachmentDownloader(
+                    HttpClientProvider.okHttpClient,
+                    AttachmentDiskCache.getInstance(context),
+                    File(context.applicationContext.cacheDir, DIRECTORY_NAME)
+                ).also { instance = it }
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.me.matrixchat.media
+
+import android.content.ContentResolver
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.net.Uri
+import android.provider.OpenableColumns
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import okhttp3.MediaType
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.RequestBody
+import okio.BufferedSink
+import okio.source
+import java.io.ByteArrayOutputStream
+import java.io.FileNotFoundException
+import java.io.IOException
+
+/**
+ * Upload body of an avatar picked by the user, shared by the profile and sign up screens.
+ *
+ * The media repository requires a Content-Length, so the length is always known up front. An
+ * image which already fits [MAX_DIMENSION] is streamed from the [ContentResolver] as is, with the
+ * size of the picked file. A larger one is decoded downsampled and re-encoded to [MAX_DIMENSION]
+ * once, when the body is created: the encoded avatar is a few hundred KB at most and is the only
+ * copy kept, the full size bitmap is never decoded. Images whose EXIF rotates them, or tells
+ * where, when or with what they were taken, are always re-encoded: the orientation is applied to
+ * the pixels and the EXIF is dropped, see [OutgoingImageProcessor.readExif]. The content type is
+ * sniffed from the file header rather than trusted from the picker. The body is repeatable.
+ */
+class AvatarRequestBody private constructor(
+    private val contentResolver: ContentResolver,
+    private val uri: Uri,
+    private val outputType: ImageType,
+    /** Size of the picked file when it is sent as is, ignored when [encoded]. */
+    private val sourceLength: Long,
+    /** The re-encoded avatar, null when the picked file is sent as is. */
+    private val encoded: ByteArray?
+) : RequestBody() {
+
+    enum class ImageType(val mimeType: String, val extension: String) {
+        JPEG("image/jpeg", "jpg"),
+        PNG("image/png", "png"),
+        GIF("image/gif", "gif"),
+        WEBP("image/webp", "webp")
+    }
+
+    /** File name matching the uploaded content type. */
+    val fileName: String
+        get() = "avatar.${outputType.extension}"
+
+    override fun contentType(): MediaType = outputType.mimeType.toMediaType()
+
+    override fun contentLength(): Long = encoded?.size?.toLong() ?: sourceLength
+
+    override fun writeTo(sink: BufferedSink) {
+        if (encoded != null) {
+            sink.write(encoded)
+            return
+        }
+        // OkHttp fails the request when the file no longer has the announced length
+        openInputStream(contentResolver, uri).source().use { sink.writeAll(it) }
+    }
+
+    companion object {
+        const val MAX_DIMENSION = 512
+        private const val JPEG_QUALITY = 90
+        private const val HEADER_SIZE = 12
+
+        /**
+         * Inspects the image at [uri] and re-encodes it when needed, returns null when it is not an
+         * image which can be decoded.
+         */
+        suspend fun create(context: Context, uri: Uri): AvatarRequestBody? = withContext(Dispatchers.IO) {
+            val contentResolver = context.contentResolver
+            val header = ByteArray(HEADER_SIZE)
+            val headerLength = contentResolver.openInputStream(uri)?.use { it.read(header) } ?: return@withContext null
+            val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+            contentResolver.openInputStream(uri)?.use { BitmapFactory.decodeStream(it, null, bounds) }
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return@withContext null
+
+            val sourceSize = maxOf(bounds.outWidth, bounds.outHeight)
+            val sourceType = sniff(header, headerLength)
+            val exif = OutgoingImageProcessor.readExif(contentResolver, uri)
+            // Small enough, nothing in the EXIF to apply or drop, and a type every client can display
+            val passThrough = sourceType != null && sourceSize <= MAX_DIMENSION && exif.isUpright && !exif.hasPrivateTags
+            if (passThrough && sourceType != null) {
+                val length = sizeOf(contentResolver, uri)
+                // Size not reported by the provider: small enough to be read like a re-encoded one
+                return@withContext if (length >= 0) {
+                    AvatarRequestBody(contentResolver, uri, sourceType, length, null)
+                } else {
+                    val bytes = openInputStream(contentResolver, uri).use { it.readBytes() }
+                    AvatarRequestBody(contentResolver, uri, sourceType, bytes.size.toLong(), bytes)
+                }
+            }
+            // Keep the transparency
+            val outputType = if (sourceType == ImageType.PNG || sourceType == ImageType.WEBP) ImageType.PNG else ImageType.JPEG
+            val encoded = encode(contentResolver, uri, sourceSize, exif.orientation, outputType)
+            AvatarRequestBody(contentResolver, uri, outputType, encoded.size.toLong(), encoded)
+        }
+
+        private fun encode(
+            contentResolver: ContentResolver,
+            uri: Uri,
+            sourceSize: Int,
+            orientation: Int,
+            outputType: ImageType
+        ): ByteArray {
+            val options = BitmapFactory.Options().apply {
+                inSampleSize = OutgoingImageProcessor.sampleSizeFor(sourceSize, MAX_DIMENSION)
+            }
+            val sampled = openInputStream(contentResolver, uri).use { BitmapFactory.decodeStream(it, null, options) }
+                ?: throw IOException("Unable to decode $uri")
+            val scaled = OutgoingImageProcessor.scaleAndOrient(sampled, MAX_DIMENSION, orientation)
+            try {
+                val output = ByteArrayOutputStream()
+                val compressed = if (outputType == ImageType.PNG) {
+                    // Lossless, the quality is ignored
+                    scaled.compress(Bitmap.CompressFormat.PNG, 100, output)
+                } else {
+                    scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output)
+                }
+                if (!compressed) throw IOException("Unable to encode $uri")
+                return output.toByteArray()
+            } finally {
+                if (scaled !== sampled) scaled.recycle()
+                sampled.recycle()
+            }
+        }
+
+        // -1 when the provider does not tell
+        private fun sizeOf(contentResolver: ContentResolver, uri: Uri): Long {
+            val statSize = try {
+                contentResolver.openFileDescriptor(uri, "r")?.use { it.statSize } ?: -1
+            } catch (e: IOException) {
+                -1
+            }
+            if (statSize >= 0) return statSize
+            return contentResolver.query(uri, arrayOf(OpenableColumns.SIZE), null, null, null)?.use {
+                val index = it.getColumnIndex(OpenableColumns.SIZE)
+                if (it.moveToFirst() && index != -1 && !it.isNull(index)) it.getLong(index) else -1
+            } ?: -1
+        }
+
+        private fun openInputStream(contentResolver: ContentResolver, uri: Uri) =
+            contentResolver.openInputStream(uri) ?: throw FileNotFoundException("Unable to open $uri")
+
+        /** Magic numbers of the supported formats, null for anything else (HEIF, BMP...). */
+        private fun sniff(header: ByteArray, length: Int): ImageType? {
+            fun matches(offset: Int, vararg bytes: Int) =
+                length >= offset + bytes.size && bytes.indices.all { header[offset + it] == bytes[it].toByte() }
+
+            return when {
+                matches(0, 0xFF, 0xD8, 0xFF) -> ImageType.JPEG
+                matches(0, 0x89, 'P'.code, 'N'.code, 'G'.code) -> ImageType.PNG
+                matches(0, 'G'.code, 'I'.code, 'F'.code, '8'.code) -> ImageType.GIF
+                matches(0, 'R'.code, 'I'.code, 'F'.code, 'F'.code) &&
+                        matches(8, 'W'.code, 'E'.code, 'B'.code, 'P'.code) -> ImageType.WEBP
+                else -> null
+            }
+        }
+    }
+}
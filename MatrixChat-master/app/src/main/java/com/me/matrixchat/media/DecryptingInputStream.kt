@@ -0,0 +1,46 @@
+package com.me.matrixchat.media
+
+import java.io.IOException
+import java.io.InputStream
+import javax.crypto.Cipher
+
+/**
+ * Decrypts an AES-CTR ciphertext as it is read, in place in the caller's buffer.
+ *
+ * Decoders skip over the parts of an image they do not need, a skip repositions the cipher with
+ * [cipherAt] instead of decrypting the skipped bytes. Plain JVM, no android.* import.
+ */
+internal class DecryptingInputStream(
+    private val input: InputStream,
+    private val cipherAt: (Long) -> Cipher
+) : InputStream() {
+
+    private var position = 0L
+    private var cipher = cipherAt(0)
+    private val single = ByteArray(1)
+
+    override fun read(): Int = if (read(single, 0, 1) == -1) -1 else single[0].toInt() and 0xff
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val read = input.read(b, off, len)
+        if (read <= 0) return read
+        // CTR is a stream mode, as many bytes out as in
+        val length = cipher.update(b, off, read, b, off)
+        if (length != read) throw IOException("Cipher returned $length bytes for $read")
+        position += read
+        return read
+    }
+
+    override fun skip(n: Long): Long {
+        val skipped = input.skip(n)
+        if (skipped > 0) {
+            position += skipped
+            cipher = cipherAt(position)
+        }
+        return skipped
+    }
+
+    override fun available() = input.available()
+
+    override fun close() = input.close()
+}
@@ -0,0 +1,71 @@
+package com.me.matrixchat.media
+
+import android.util.Base64
+import androidx.annotation.VisibleForTesting
+import java.io.File
+import java.io.InputStream
+import java.math.BigInteger
+import javax.crypto.Cipher
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Glide model of an encrypted attachment, built from the `file` object (EncryptedFileInfo) of an
+ * encrypted message. It is loaded by [com.me.matrixchat.media.glide.EncryptedFileModelLoader].
+ * Like [MxcMediaModel] it carries no url or token, see [MediaUrlResolver].
+ */
+data class EncryptedFileModel(
+    val mxcUri: String,
+    val keyB64: String?,
+    val ivB64: String?,
+    val sha256: String?,
+    /** `info.size` of the event, the ciphertext has the same length. */
+    val size: Long? = null
+) {
+
+    /**
+     * Returns a cipher positioned at byte [offset] of the attachment. AES-CTR is seekable: the
+     * counter is the IV plus the number of whole blocks before [offset], as a 128 bit big endian
+     * integer, and the bytes of the first block before [offset] are consumed from the key stream.
+     */
+    fun createDecryptCipher(offset: Long = 0): Cipher {
+        val keyBytes = Base64.decode(keyB64, Base64.URL_SAFE or Base64.NO_PADDING or Base64.NO_WRAP)
+        return createDecryptCipher(keyBytes, Base64.decode(ivB64, Base64.DEFAULT), offset)
+    }
+
+    /**
+     * Opens the cached ciphertext [file] of this attachment, decrypted as it is read.
+     */
+    fun openDecrypted(file: File): InputStream = DecryptingInputStream(file.inputStream()) { createDecryptCipher(it) }
+
+    companion object {
+        private const val AES_BLOCK_SIZE = 16
+        private val COUNTER_MODULUS = BigInteger.ONE.shiftLeft(AES_BLOCK_SIZE * 8)
+
+        // Base64 decoded key and iv, android.util.Base64 is not available to the unit tests
+        @VisibleForTesting
+        @JvmStatic
+        fun createDecryptCipher(keyBytes: ByteArray, iv: ByteArray, offset: Long): Cipher {
+            require(offset >= 0) { "Negative offset $offset" }
+            return Cipher.getInstance("AES/CTR/NoPadding").apply {
+                init(Cipher.DECRYPT_MODE, SecretKeySpec(keyBytes, "AES"), IvParameterSpec(counterAt(iv, offset / AES_BLOCK_SIZE)))
+                val skip = (offset % AES_BLOCK_SIZE).toInt()
+                if (skip > 0) {
+                    update(ByteArray(skip))
+                }
+            }
+        }
+
+        @VisibleForTesting
+        @JvmStatic
+        fun counterAt(iv: ByteArray, blocks: Long): ByteArray {
+            if (blocks == 0L) return iv
+            val counter = BigInteger(1, iv).add(BigInteger.valueOf(blocks)).mod(COUNTER_MODULUS).toByteArray()
+            // toByteArray() is minimal and may carry a sign byte, left pad or trim to a full block
+            val result = ByteArray(AES_BLOCK_SIZE)
+            val length = minOf(counter.size, AES_BLOCK_SIZE)
+            System.arraycopy(counter, counter.size - length, result, AES_BLOCK_SIZE - length, length)
+            return result
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.me.matrixchat.media
+
+import android.app.ActivityManager
+import android.content.Context
+import android.graphics.drawable.Drawable
+import android.util.Log
+import android.widget.ImageView
+import androidx.annotation.DrawableRes
+import com.bumptech.glide.Glide
+import com.bumptech.glide.Priority
+import com.bumptech.glide.load.DataSource
+import com.bumptech.glide.load.engine.DiskCacheStrategy
+import com.bumptech.glide.load.engine.GlideException
+import com.bumptech.glide.load.engine.cache.MemoryCache
+import com.bumptech.glide.request.RequestListener
+import com.bumptech.glide.request.target.Target
+import com.me.matrixchat.R
+import com.me.matrixchat.media.glide.MxcMediaModelLoader
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The one entry point for loading images into views: avatars, timeline images and full size images.
+ *
+ * Everything goes through Glide, configured by MatrixChatGlideModule with the budget below, so the
+ * app has a single memory cache, bitmap pool, disk cache and decode pool. [stats] counts where
+ * every loaded image came from.
+ */
+object ImagePipeline {
+
+    // Shares of the app's heap, see ActivityManager.getMemoryClass
+    private const val MEMORY_CACHE_HEAP_FRACTION = 0.15f
+    private const val BITMAP_POOL_HEAP_FRACTION = 0.10f
+
+    const val DISK_CACHE_BYTES = 250L * 1024 * 1024
+    const val DISK_CACHE_DIRECTORY = "image_cache"
+
+    private const val TAG = "ImagePipeline"
+
+    class Stats : RequestListener<Any> {
+        private val bySource = DataSource.values().associateWith { AtomicLong() }
+        private val failures = AtomicLong()
+
+        /** Set by MatrixChatGlideModule, to report its fill level. */
+        @Volatile
+        var memoryCache: MemoryCache? = null
+
+        val memoryHitCount: Long
+            get() = count(DataSource.MEMORY_CACHE)
+
+        val diskHitCount: Long
+            get() = count(DataSource.RESOURCE_DISK_CACHE) + count(DataSource.DATA_DISK_CACHE)
+
+        val networkCount: Long
+            get() = count(DataSource.REMOTE)
+
+        val failureCount: Long
+            get() = failures.get()
+
+        fun count(dataSource: DataSource): Long = bySource.getValue(dataSource).get()
+
+        override fun onResourceReady(
+            resource: Any?,
+            model: Any?,
+            target: Target<Any>?,
+            dataSource: DataSource?,
+            isFirstResource: Boolean
+        ): Boolean {
+            dataSource?.let { bySource.getValue(it).incrementAndGet() }
+            return false
+        }
+
+        override fun onLoadFailed(e: GlideException?, model: Any?, target: Target<Any>?, isFirstResource: Boolean): Boolean {
+            failures.incrementAndGet()
+            return false
+        }
+
+        fun dump() {
+            val cache = memoryCache
+            Log.d(TAG, "memory=$memoryHitCount disk=$diskHitCount local=${count(DataSource.LOCAL)} " +
+                    "network=$networkCount failed=$failureCount " +
+                    "memory cache ${cache?.currentSize?.div(1024)}/${cache?.maxSize?.div(1024)} KiB, " +
+                    "urls memoized ${MediaUrlResolver.hitCount}/${MediaUrlResolver.hitCount + MediaUrlResolver.missCount}, " +
+                    "downloads joined ${MxcMediaModelLoader.inFlight.joinedCount}")
+        }
+    }
+
+    val stats = Stats()
+
+    fun memoryCacheBytes(context: Context): Long = (heapBytes(context) * MEMORY_CACHE_HEAP_FRACTION.toDouble()).toLong()
+
+    fun bitmapPoolBytes(context: Context): Long = (heapBytes(context) * BITMAP_POOL_HEAP_FRACTION.toDouble()).toLong()
+
+    /**
+     * Loads a user or room avatar thumbnail, optionally cropped to a circle. [placeholder] (usually
+     * a letter avatar, see AvatarRenderer) is also shown when there is no avatar or it fails to load.
+     */
+    fun loadAvatar(imageView: ImageView, model: Any?, circle: Boolean = false, placeholder: Drawable? = null) {
+        Glide.with(imageView)
+            .load(model)
+            .let {
+                if (placeholder != null) {
+                    it.placeholder(placeholder).error(placeholder).fallback(placeholder)
+                } else {
+                    it.placeholder(R.drawable.user_default).error(R.drawable.user_default)
+                }
+            }
+            .let { if (circle) it.circleCrop() else it }
+            .into(imageView)
+    }
+
+    /**
+     * Loads the bubble image of a timeline message: an [EncryptedFileModel], a local file or a url.
+     */
+    fun loadTimelineImage(imageView: ImageView, model: Any?) {
+        Glide.with(imageView)
+            .load(model)
+            // Encrypted media is decrypted in memory, only the downsampled result may reach the disk
+            .let { if (model is EncryptedFileModel) it.diskCacheStrategy(DiskCacheStrategy.RESOURCE) else it }
+            .placeholder(R.drawable.user_default)
+            .error(R.drawable.backgroundless)
+            .into(imageView)
+    }
+
+    /**
+     * Loads the original of an image opened full screen, showing [thumbnailModel] until it is ready.
+     */
+    fun loadFullSize(imageView: ImageView, model: Any, thumbnailModel: Any?, @DrawableRes error: Int = R.drawable.backgroundless) {
+        Glide.with(imageView)
+            .load(model)
+            // Never keep decrypted originals in Glide's data cache
+            .diskCacheStrategy(DiskCacheStrategy.RESOURCE)
+            .priority(Priority.IMMEDIATE)
+            .thumbnail(Glide.with(imageView).load(thumbnailModel).diskCacheStrategy(DiskCacheStrategy.RESOURCE))
+            .error(error)
+            .into(imageView)
+    }
+
+    /** Cancels the pending load of [imageView], if any, and releases its image. */
+    fun clear(imageView: ImageView) {
+        Glide.with(imageView).clear(imageView)
+    }
+
+    private fun heapBytes(context: Context): Long {
+        val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+        return activityManager.memoryClass * 1024L * 1024L
+    }
+}
@@ -0,0 +1,75 @@
+package com.me.matrixchat.media
+
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs at most one load per key at a time: callers asking for a key which is already being loaded
+ * wait for that load and share its result instead of starting their own.
+ *
+ * Meant for blocking loads on background threads (Glide fetchers). When the load a caller joined
+ * was cancelled, the caller loads the value itself rather than failing with it.
+ */
+class InFlightRequests<K : Any, V : Any> {
+
+    private class Pending<V : Any> {
+        val done = CountDownLatch(1)
+
+        @Volatile
+        var value: V? = null
+
+        @Volatile
+        var error: IOException? = null
+
+        @Volatile
+        var cancelled = false
+    }
+
+    private val pending = ConcurrentHashMap<K, Pending<V>>()
+    private val joined = AtomicLong()
+
+    /** Number of loads which were not started because the same key was in flight. */
+    val joinedCount: Long
+        get() = joined.get()
+
+    /**
+     * Returns the value of [key], from [load] or from the load already in flight. [isCancelled] is
+     * polled while waiting, [load] should report its own cancellation through [isCancelled] too.
+     */
+    @Throws(IOException::class)
+    fun get(key: K, isCancelled: () -> Boolean, load: () -> V): V {
+        while (true) {
+            val mine = Pending<V>()
+            val current = pending.putIfAbsent(key, mine)
+            if (current == null) {
+                try {
+                    return load().also { mine.value = it }
+                } catch (e: IOException) {
+                    mine.error = e
+                    mine.cancelled = isCancelled()
+                    throw e
+                } finally {
+                    pending.remove(key, mine)
+                    mine.done.countDown()
+                }
+            }
+
+            joined.incrementAndGet()
+            while (!current.done.await(CANCEL_POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (isCancelled()) throw InterruptedIOException("Cancelled")
+            }
+            current.value?.let { return it }
+            val error = current.error
+            if (error != null && !current.cancelled) throw error
+            // The load we joined was cancelled (or failed on something else than I/O): try again
+        }
+    }
+
+    private companion object {
+        const val CANCEL_POLL_MS = 100L
+    }
+}
@@ -0,0 +1,66 @@
+package com.me.matrixchat.media;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.Registry;
+import com.bumptech.glide.annotation.GlideModule;
+import com.bumptech.glide.integration.okhttp3.OkHttpUrlLoader;
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool;
+import com.bumptech.glide.load.engine.cache.InternalCacheDiskCacheFactory;
+import com.bumptech.glide.load.engine.cache.LruResourceCache;
+import com.bumptech.glide.load.model.GlideUrl;
+import com.bumptech.glide.module.AppGlideModule;
+import com.me.matrixchat.media.glide.EncryptedFileModelLoader;
+import com.me.matrixchat.media.glide.MxcMediaModelLoader;
+import com.me.matrixchat.media.glide.ScheduledModelLoader;
+import com.me.matrixchat.network.HttpClientProvider;
+
+import java.io.InputStream;
+
+/**
+ * Registers the app specific Glide components and the memory and disk budget of
+ * {@link ImagePipeline}. Written in Java so that the Glide annotation processor, declared with
+ * annotationProcessor, picks it up.
+ */
+@GlideModule
+public final class MatrixChatGlideModule extends AppGlideModule {
+
+    @Override
+    public void applyOptions(@NonNull Context context, @NonNull GlideBuilder builder) {
+        ImagePipeline pipeline = ImagePipeline.INSTANCE;
+        LruResourceCache memoryCache = new LruResourceCache(pipeline.memoryCacheBytes(context));
+        pipeline.getStats().setMemoryCache(memoryCache);
+        builder.setMemoryCache(memoryCache)
+                .setBitmapPool(new LruBitmapPool(pipeline.bitmapPoolBytes(context)))
+                .setDiskCache(new InternalCacheDiskCacheFactory(context,
+                        ImagePipeline.DISK_CACHE_DIRECTORY, ImagePipeline.DISK_CACHE_BYTES))
+                .addGlobalRequestListener(pipeline.getStats());
+    }
+
+    @Override
+    public void registerComponents(@NonNull Context context, @NonNull Glide glide, @NonNull Registry registry) {
+        MediaDownloadScheduler scheduler = MediaDownloadScheduler.Companion.getShared();
+        // Url loads go through the shared client instead of HttpURLConnection
+        registry.replace(GlideUrl.class, InputStream.class, new ScheduledModelLoader.Factory<>(
+                new OkHttpUrlLoader.Factory(HttpClientProvider.INSTANCE.getOkHttpClient()),
+                scheduler,
+                GlideUrl::toStringUrl));
+        registry.prepend(EncryptedFileModel.class, InputStream.class, new ScheduledModelLoader.Factory<>(
+                new EncryptedFileModelLoader.Factory(context),
+                scheduler,
+                EncryptedFileModel::getMxcUri));
+        registry.prepend(MxcMediaModel.class, InputStream.class, new ScheduledModelLoader.Factory<>(
+                new MxcMediaModelLoader.Factory(),
+                scheduler,
+                MxcMediaModel::getMxcUri));
+    }
+
+    @Override
+    public boolean isManifestParsingEnabled() {
+        return false;
+    }
+}
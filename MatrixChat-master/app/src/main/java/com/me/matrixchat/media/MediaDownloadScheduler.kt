@@ -0,0 +1,195 @@
+package com.me.matrixchat.media
+
+import android.util.Log
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Runs media downloads with bounded concurrency, most urgent first.
+ *
+ * Each task is submitted with a key, the url or mxc uri of the media. The priority of queued tasks
+ * follows what the screens show: each owner, a list tracking its bound images, calls
+ * [updatePriorities] with the keys of the images currently bound to its views. A task it no
+ * longer hints drops to [Priority.PREFETCH], unless another owner still hints its key, and the
+ * tasks of other owners are left alone. Within a priority, tasks run in submission order.
+ *
+ * A task holds its slot until it calls `done`, which may be after [Task.run] has returned: an
+ * OkHttp fetcher only enqueues its call and completes on OkHttp's own threads.
+ */
+class MediaDownloadScheduler(private val maxConcurrent: Int) {
+
+    fun interface Task {
+        /**
+         * Runs on a scheduler thread. [done] must be called once the download has completed, failed
+         * or been cancelled, from any thread.
+         */
+        fun run(done: Runnable)
+    }
+
+    /** In order of urgency. */
+    enum class Priority {
+        VISIBLE,
+        NEAR_VIEWPORT,
+        PREFETCH
+    }
+
+    inner class Ticket internal constructor(
+        val key: String,
+        @Volatile var priority: Priority,
+        internal val task: Task
+    ) {
+        internal val sequence = nextSequence++
+        internal val enqueuedAt = System.nanoTime()
+
+        /**
+         * Removes the task if it has not started yet, returns false when it is already running or done.
+         */
+        fun cancel(): Boolean = synchronized(lock) {
+            queue.remove(this).also { if (it) cancelled++ }
+        }
+    }
+
+    private val lock = Any()
+
+    // Short, bounded by the views on screen plus what scrolled past, a scan is cheaper than re-sorting
+    private val queue = ArrayList<Ticket>()
+    private var running = 0
+    private var nextSequence = 0L
+    // The keys each owner last saw bound to its views
+    private val hintsByOwner = HashMap<Any, Map<String, Priority>>()
+
+    private var submitted = 0L
+    private var cancelled = 0L
+    private val startedByPriority = LongArray(Priority.values().size)
+    private val totalWaitMsByPriority = LongArray(Priority.values().size)
+    private val maxWaitMsByPriority = LongArray(Priority.values().size)
+
+    // Idle threads are kept a while, never more than maxConcurrent are busy
+    private val executor = Executors.newCachedThreadPool(object : ThreadFactory {
+        private val count = AtomicInteger()
+        override fun newThread(r: Runnable) = Thread(r, "media-download-${count.incrementAndGet()}")
+    })
+
+    /** Tasks waiting for a slot. */
+    val queueDepth: Int
+        get() = synchronized(lock) { queue.size }
+
+    val runningCount: Int
+        get() = synchronized(lock) { running }
+
+    /** Average time tasks of [priority] waited in the queue before starting. */
+    fun averageWaitMs(priority: Priority): Long = synchronized(lock) {
+        val started = startedByPriority[priority.ordinal]
+        if (started == 0L) 0 else totalWaitMsByPriority[priority.ordinal] / started
+    }
+
+    fun maxWaitMs(priority: Priority): Long = synchronized(lock) { maxWaitMsByPriority[priority.ordinal] }
+
+    /**
+     * Queues [task]. Its priority is the most urgent one last given to [key] by [updatePriorities],
+     * or [priority] when the key is not bound to a view.
+     */
+    fun submit(key: String, priority: Priority, task: Task): Ticket {
+        val ticket = synchronized(lock) {
+            submitted++
+            Ticket(key, hintFor(key) ?: priority, task).also { queue.add(it) }
+        }
+        dispatch()
+        return ticket
+    }
+
+    /**
+     * Re-prioritizes the queue after a scroll of [owner]: [bound] maps the keys of the images bound
+     * to its views to their priority. Only the tasks of these keys, and of the keys [owner] hinted
+     * before, are updated.
+     */
+    fun updatePriorities(owner: Any, bound: Map<String, Priority>) {
+        synchronized(lock) {
+            val previous = if (bound.isEmpty()) hintsByOwner.remove(owner) else hintsByOwner.put(owner, bound)
+            if (previous.isNullOrEmpty() && bound.isEmpty()) return
+            queue.forEach { ticket ->
+                if (ticket.key in bound || previous?.containsKey(ticket.key) == true) {
+                    ticket.priority = hintFor(ticket.key) ?: Priority.PREFETCH
+                }
+            }
+        }
+    }
+
+    /** Forgets the hints of [owner] once its views are gone, its tasks still queued are demoted. */
+    fun clearPriorities(owner: Any) {
+        updatePriorities(owner, emptyMap())
+    }
+
+    fun dump() {
+        synchronized(lock) {
+            Log.d(TAG, "queued=${queue.size} running=$running submitted=$submitted cancelled=$cancelled")
+            Priority.values().forEach {
+                Log.d(TAG, "$it started=${startedByPriority[it.ordinal]} " +
+                        "wait avg=${averageWaitMs(it)}ms max=${maxWaitMsByPriority[it.ordinal]}ms")
+            }
+        }
+    }
+
+    private fun dispatch() {
+        while (true) {
+            val next = synchronized(lock) {
+                if (running >= maxConcurrent || queue.isEmpty()) return
+                val best = queue.minWithOrNull(URGENCY) ?: return
+                queue.remove(best)
+                running++
+                recordWait(best)
+                best
+            }
+            executor.execute {
+                val done = releaseOnce()
+                try {
+                    next.task.run(done)
+                } catch (t: Throwable) {
+                    Log.e(TAG, "Download of ${next.key} failed", t)
+                    done.run()
+                }
+            }
+        }
+    }
+
+    // Frees the slot of a task and starts the next one, extra calls are ignored
+    private fun releaseOnce(): Runnable {
+        val released = AtomicBoolean()
+        return Runnable {
+            if (released.compareAndSet(false, true)) {
+                synchronized(lock) { running-- }
+                dispatch()
+            }
+        }
+    }
+
+    // The most urgent of the owners, with the lock held
+    private fun hintFor(key: String): Priority? {
+        var best: Priority? = null
+        for (hints in hintsByOwner.values) {
+            val priority = hints[key] ?: continue
+            if (best == null || priority < best) best = priority
+        }
+        return best
+    }
+
+    private fun recordWait(ticket: Ticket) {
+        val index = ticket.priority.ordinal
+        val waitMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ticket.enqueuedAt)
+        startedByPriority[index]++
+        totalWaitMsByPriority[index] += waitMs
+        if (waitMs > maxWaitMsByPriority[index]) maxWaitMsByPriority[index] = waitMs
+    }
+
+    companion object {
+        private const val TAG = "MediaDownloadScheduler"
+        private const val MAX_CONCURRENT_DOWNLOADS = 4
+
+        private val URGENCY = compareBy<Ticket>({ it.priority.ordinal }, { it.sequence })
+
+        val shared: MediaDownloadScheduler by lazy { MediaDownloadScheduler(MAX_CONCURRENT_DOWNLOADS) }
+    }
+}
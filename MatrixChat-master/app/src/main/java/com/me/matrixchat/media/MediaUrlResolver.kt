@@ -0,0 +1,71 @@
+package com.me.matrixchat.media
+
+import android.util.LruCache
+import com.me.matrixchat.SessionHolder
+import okhttp3.Request
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Turns media models into requests at fetch time, with the session current at that moment.
+ *
+ * Media is downloaded from the authenticated endpoints (`/_matrix/client/v1/media`), the token is
+ * sent in the Authorization header and never ends up in a url, a model or a cache key.
+ *
+ * Urls only depend on the model and the homeserver, they are memoized per model for the current
+ * session.
+ */
+object MediaUrlResolver {
+
+    private const val LEGACY_MEDIA_PATH = "/_matrix/media/r0/"
+    private const val AUTHENTICATED_MEDIA_PATH = "/_matrix/client/v1/media/"
+    private const val MAX_RESOLVED_URLS = 512
+
+    private val resolvedUrls = LruCache<MxcMediaModel, String>(MAX_RESOLVED_URLS)
+    private var resolvedSessionId: String? = null
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+
+    val hitCount: Long
+        get() = hits.get()
+
+    val missCount: Long
+        get() = misses.get()
+
+    /** Returns the url of [model], or null when there is no session or the uri is not a valid mxc uri. */
+    fun resolve(model: MxcMediaModel): String? {
+        val session = SessionHolder.currentSession ?: return null
+        synchronized(resolvedUrls) {
+            // Another account may be on another homeserver
+            if (session.sessionId != resolvedSessionId) {
+                resolvedUrls.evictAll()
+                resolvedSessionId = session.sessionId
+            }
+        }
+        resolvedUrls.get(model)?.let {
+            hits.incrementAndGet()
+            return it
+        }
+        misses.incrementAndGet()
+        val contentUrlResolver = session.contentUrlResolver()
+        val url = if (model.isFullSize) {
+            contentUrlResolver.resolveFullSize(model.mxcUri)
+        } else {
+            contentUrlResolver.resolveThumbnail(model.mxcUri, model.size, model.size, model.method)
+        } ?: return null
+        return url.replace(LEGACY_MEDIA_PATH, AUTHENTICATED_MEDIA_PATH).also { resolvedUrls.put(model, it) }
+    }
+
+    /** Value of the Authorization header of media requests, null without a session. */
+    fun authorization(): String? {
+        return SessionHolder.currentSession?.sessionParams?.credentials?.accessToken?.let { "Bearer $it" }
+    }
+
+    /** Builds an authenticated request for [model], null when it cannot be resolved. */
+    fun newRequest(model: MxcMediaModel): Request.Builder? {
+        val url = resolve(model) ?: return null
+        return Request.Builder().url(url).apply {
+            authorization()?.let { header("Authorization", it) }
+        }
+    }
+}
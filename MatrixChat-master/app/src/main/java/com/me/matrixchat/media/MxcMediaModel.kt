@@ -0,0 +1,47 @@
+package com.me.matrixchat.media
+
+import org.matrix.android.sdk.api.session.content.ContentUrlResolver
+
+/**
+ * Glide model of unencrypted media, loaded by [com.me.matrixchat.media.glide.MxcMediaModelLoader].
+ *
+ * It holds what identifies the image and nothing else: no homeserver url, no access token. Both
+ * are added by [MediaUrlResolver] when the image is fetched, so cache entries (memory and disk)
+ * survive a token refresh or a new login, and every screen showing the same avatar shares one.
+ *
+ * Thumbnail sizes are snapped up to [SIZE_BUCKETS] by [thumbnail], so that an image shown at
+ * slightly different sizes is still downloaded and cached once.
+ */
+data class MxcMediaModel(
+    val mxcUri: String,
+    /** Bounding box of the server side thumbnail, one of [SIZE_BUCKETS], or [FULL_SIZE] for the original. */
+    val size: Int = FULL_SIZE,
+    val method: ContentUrlResolver.ThumbnailMethod = ContentUrlResolver.ThumbnailMethod.SCALE
+) {
+
+    init {
+        require(size == FULL_SIZE || size in SIZE_BUCKETS) { "$size is not a thumbnail size bucket, use thumbnail()" }
+    }
+
+    val isFullSize: Boolean
+        get() = size == FULL_SIZE
+
+    companion object {
+        const val FULL_SIZE = 0
+
+        // Close to the sizes homeservers pre-generate, larger requests get the largest bucket
+        private val SIZE_BUCKETS = intArrayOf(128, 320, 640, 800)
+
+        /** Avatars of every screen are requested at this size so that they share cache entries. */
+        const val AVATAR_SIZE = 100
+
+        fun fullSize(mxcUri: String) = MxcMediaModel(mxcUri)
+
+        /** Thumbnail of at least [size] pixels, up to the largest bucket. */
+        fun thumbnail(mxcUri: String, size: Int) = MxcMediaModel(mxcUri, bucketFor(size))
+
+        fun avatar(mxcUri: String) = thumbnail(mxcUri, AVATAR_SIZE)
+
+        internal fun bucketFor(size: Int): Int = SIZE_BUCKETS.firstOrNull { it >= size } ?: SIZE_BUCKETS.last()
+    }
+}
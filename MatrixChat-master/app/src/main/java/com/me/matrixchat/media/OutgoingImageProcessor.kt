@@ -0,0 +1,255 @@
+package com.me.matrixchat.media
+
+import android.content.ContentResolver
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Matrix
+import android.media.ExifInterface
+import android.net.Uri
+import android.os.Build
+import android.util.Log
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.IOException
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+/**
+ * Prepares a picked image for sendMedia: downsampled to [Config.maxDimension], re-encoded with
+ * [Config.format] and [Config.quality], and a thumbnail of [Config.thumbnailMaxDimension] from the
+ * same decoded bitmap. Images with an alpha channel are re-encoded as PNG rather than JPEG, which
+ * would turn their transparent areas black.
+ *
+ * Re-encoding drops all EXIF metadata (location, camera...). The orientation is applied to the
+ * pixels first so the image still shows the right way up. An image which already fits, is upright,
+ * carries no location or camera details and is of a type every client displays is sent as is,
+ * only its thumbnail is made.
+ */
+class OutgoingImageProcessor(
+    context: Context,
+    private val config: Config = Config()
+) {
+
+    enum class Format(val mimeType: String, val extension: String) {
+        JPEG("image/jpeg", "jpg"),
+        PNG("image/png", "png"),
+        WEBP("image/webp", "webp")
+    }
+
+    data class Config(
+        val maxDimension: Int = 2048,
+        val format: Format = Format.JPEG,
+        val quality: Int = 80,
+        val thumbnailMaxDimension: Int = 640,
+        val thumbnailQuality: Int = 70
+    )
+
+    class Result(
+        /** The picked uri itself when the image is sent as is, else the re-encoded file. */
+        val uri: Uri,
+        val size: Long,
+        val name: String,
+        val mimeType: String,
+        val width: Int,
+        val height: Int,
+        val thumbnail: File
+    )
+
+    /**
+     * What the EXIF of an image requires before it is sent. [hasPrivateTags] is true when it tells
+     * where, when or with which device the picture was taken.
+     */
+    internal class ExifInfo(val orientation: Int, val hasPrivateTags: Boolean) {
+        val isUpright: Boolean
+            get() = orientation == ExifInterface.ORIENTATION_NORMAL || orientation == ExifInterface.ORIENTATION_UNDEFINED
+    }
+
+    private val contentResolver = context.contentResolver
+    private val directory = File(context.applicationContext.cacheDir, DIRECTORY_NAME)
+
+    /**
+     * Returns the processed image, or null when [uri] should be sent as is without a thumbnail
+     * (animated GIF, or an image which cannot be decoded).
+     */
+    suspend fun process(uri: Uri, name: String): Result? = withContext(Dispatchers.IO) {
+        val sourceMimeType = contentResolver.getType(uri)
+        if (sourceMimeType == GIF_MIME_TYPE) {
+            // Re-encoding would lose the animation
+            return@withContext null
+        }
+        try {
+            val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+            contentResolver.openInputStream(uri)?.use { BitmapFactory.decodeStream(it, null, bounds) }
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return@withContext null
+
+            val longSide = maxOf(bounds.outWidth, bounds.outHeight)
+            val exif = readExif(contentResolver, uri)
+            val passThroughMimeType = sourceMimeType?.takeIf {
+                longSide <= config.maxDimension && exif.isUpright && !exif.hasPrivateTags && it in PASS_THROUGH_MIME_TYPES
+            }
+            val passThrough = passThroughMimeType != null
+            // Sent as is, only the thumbnail is needed from the pixels
+            val decodedDimension = if (passThrough) config.thumbnailMaxDimension else config.maxDimension
+            val options = BitmapFactory.Options().apply {
+                inSampleSize = sampleSizeFor(longSide, decodedDimension)
+            }
+            val sampled = contentResolver.openInputStream(uri)?.use { BitmapFactory.decodeStream(it, null, options) }
+                ?: return@withContext null
+            val image = scaleAndOrient(sampled, decodedDimension, exif.orientation)
+            val thumbnail = scaleAndOrient(image, config.thumbnailMaxDimension, ExifInterface.ORIENTATION_NORMAL)
+
+            prepareDirectory()
+            val id = UUID.randomUUID().toString()
+            val thumbnailFile = compress(thumbnail, "$id-thumbnail", config.thumbnailQuality)
+
+            val result = if (passThroughMimeType != null) {
+                Result(
+                    uri = uri,
+                    size = sizeOf(uri),
+                    name = name,
+                    mimeType = passThroughMimeType,
+                    width = bounds.outWidth,
+                    height = bounds.outHeight,
+                    thumbnail = thumbnailFile
+                )
+            } else {
+                val file = compress(image, id, config.quality)
+                Result(
+                    uri = Uri.fromFile(file),
+                    size = file.length(),
+                    name = "${name.substringBeforeLast('.')}.${file.extension}",
+                    mimeType = formatFor(image).mimeType,
+                    width = image.width,
+                    height = image.height,
+                    thumbnail = thumbnailFile
+                )
+            }
+            result.also {
+                Log.d(TAG, "${bounds.outWidth}x${bounds.outHeight} -> ${it.width}x${it.height}, ${it.size} bytes" +
+                        if (passThrough) ", sent as is" else "")
+                if (thumbnail !== image) thumbnail.recycle()
+                if (image !== sampled) image.recycle()
+                sampled.recycle()
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Unable to process $uri, it is sent as is", e)
+            null
+        } catch (e: OutOfMemoryError) {
+            Log.e(TAG, "Unable to process $uri, it is sent as is", e)
+            null
+        }
+    }
+
+    // 0 when unknown, like an attachment whose size could not be queried
+    private fun sizeOf(uri: Uri): Long = try {
+        contentResolver.openFileDescriptor(uri, "r")?.use { it.statSize.coerceAtLeast(0) } ?: 0
+    } catch (e: IOException) {
+        0
+    }
+
+    private fun compress(bitmap: Bitmap, baseName: String, quality: Int): File {
+        val format = formatFor(bitmap)
+        val file = File(directory, "$baseName.${format.extension}")
+        file.outputStream().use {
+            if (!bitmap.compress(compressFormat(format), quality, it)) {
+                throw IOException("Unable to encode $file")
+            }
+        }
+        return file
+    }
+
+    // JPEG has no alpha channel, transparent pixels would come out black
+    private fun formatFor(bitmap: Bitmap) =
+        if (bitmap.hasAlpha() && config.format == Format.JPEG) Format.PNG else config.format
+
+    // The files must outlive the fragment, the upload worker reads them later
+    private fun prepareDirectory() {
+        directory.mkdirs()
+        val expiry = System.currentTimeMillis() - MAX_FILE_AGE_MS
+        directory.listFiles()?.forEach { file ->
+            if (file.lastModified() < expiry) {
+                file.delete()
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "OutgoingImageProcessor"
+        private const val DIRECTORY_NAME = "outgoing"
+        private const val GIF_MIME_TYPE = "image/gif"
+        private val MAX_FILE_AGE_MS = TimeUnit.DAYS.toMillis(1)
+
+        private val PASS_THROUGH_MIME_TYPES = setOf("image/jpeg", "image/png", "image/webp")
+        private val NO_EXIF = ExifInfo(ExifInterface.ORIENTATION_NORMAL, false)
+        private val PRIVATE_TAGS = listOf(
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_DATETIME_ORIGINAL,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL,
+            ExifInterface.TAG_BODY_SERIAL_NUMBER,
+            ExifInterface.TAG_CAMERA_OWNER_NAME
+        )
+
+        internal fun readExif(contentResolver: ContentResolver, uri: Uri): ExifInfo {
+            return try {
+                contentResolver.openInputStream(uri)?.use {
+                    val exif = ExifInterface(it)
+                    ExifInfo(
+                        orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL),
+                        hasPrivateTags = PRIVATE_TAGS.any { tag -> exif.getAttribute(tag) != null }
+                    )
+                } ?: NO_EXIF
+            } catch (e: IOException) {
+                NO_EXIF
+            }
+        }
+
+        /** Scales [source] down to [maxDimension] on the long side and applies the EXIF [orientation]. */
+        internal fun scaleAndOrient(source: Bitmap, maxDimension: Int, orientation: Int): Bitmap {
+            val scale = minOf(1f, maxDimension.toFloat() / maxOf(source.width, source.height))
+            val matrix = Matrix().apply {
+                postScale(scale, scale)
+                when (orientation) {
+                    ExifInterface.ORIENTATION_FLIP_HORIZONTAL -> postScale(-1f, 1f)
+                    ExifInterface.ORIENTATION_ROTATE_180 -> postRotate(180f)
+                    ExifInterface.ORIENTATION_FLIP_VERTICAL -> postScale(1f, -1f)
+                    ExifInterface.ORIENTATION_TRANSPOSE -> {
+                        postRotate(90f)
+                        postScale(-1f, 1f)
+                    }
+                    ExifInterface.ORIENTATION_ROTATE_90 -> postRotate(90f)
+                    ExifInterface.ORIENTATION_TRANSVERSE -> {
+                        postRotate(-90f)
+                        postScale(-1f, 1f)
+                    }
+                    ExifInterface.ORIENTATION_ROTATE_270 -> postRotate(-90f)
+                }
+            }
+            if (matrix.isIdentity) return source
+            return Bitmap.createBitmap(source, 0, 0, source.width, source.height, matrix, true)
+        }
+
+        @Suppress("DEPRECATION")
+        internal fun compressFormat(format: Format) = when (format) {
+            Format.JPEG -> Bitmap.CompressFormat.JPEG
+            Format.PNG -> Bitmap.CompressFormat.PNG
+            Format.WEBP -> if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                Bitmap.CompressFormat.WEBP_LOSSY
+            } else {
+                Bitmap.CompressFormat.WEBP
+            }
+        }
+
+        /** Largest power of two which still decodes at least [maxDimension] pixels on the long side. */
+        internal fun sampleSizeFor(longSide: Int, maxDimension: Int): Int {
+            var sampleSize = 1
+            while (longSide / (sampleSize * 2) >= maxDimension) {
+                sampleSize *= 2
+            }
+            return sampleSize
+        }
+    }
+}
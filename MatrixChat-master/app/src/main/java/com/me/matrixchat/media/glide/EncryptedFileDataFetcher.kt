@@ -0,0 +1,121 @@
+package com.me.matrixchat.media.glide
+
+import com.bumptech.glide.Priority
+import com.bumptech.glide.load.DataSource
+import com.bumptech.glide.load.HttpException
+import com.bumptech.glide.load.data.DataFetcher
+import com.me.matrixchat.media.AttachmentDecryptor
+import com.me.matrixchat.media.AttachmentDiskCache
+import com.me.matrixchat.media.AttachmentDownloader
+import com.me.matrixchat.media.EncryptedFileModel
+import com.me.matrixchat.media.MediaUrlResolver
+import com.me.matrixchat.media.MxcMediaModel
+import okhttp3.Call
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.security.GeneralSecurityException
+
+/**
+ * Downloads and decrypts an [EncryptedFileModel] in memory, in a single pass which also hashes the
+ * ciphertext and stores it in the [AttachmentDiskCache]. Glide only gets the plaintext once it
+ * matched `hashes.sha256`, and it is never written to disk. An attachment without a hash fails.
+ *
+ * Only attachments known to be smaller than [AttachmentDownloader.RESUMABLE_MIN_SIZE], from the
+ * event and from the response, are buffered. Larger ones, and those whose size is not known, go
+ * through the resumable [AttachmentDownloader] instead and are decrypted as Glide reads the cached
+ * ciphertext.
+ */
+internal class EncryptedFileDataFetcher(
+    private val client: Call.Factory,
+    private val model: EncryptedFileModel,
+    private val diskCache: AttachmentDiskCache,
+    private val downloader: AttachmentDownloader
+) : DataFetcher<InputStream> {
+
+    @Volatile
+    private var call: Call? = null
+
+    @Volatile
+    private var download: AttachmentDownloader.Download? = null
+
+    private var stream: InputStream? = null
+    private var dataSource = DataSource.REMOTE
+
+    override fun loadData(priority: Priority, callback: DataFetcher.DataCallback<in InputStream>) {
+        try {
+            AttachmentDecryptor.requireSha256(model.mxcUri, model.sha256)
+            // A full size copy may already have been downloaded when the attachment was opened
+            diskCache.get(model.mxcUri, model.sha256)?.let { file ->
+                dataSource = DataSource.LOCAL
+                stream = model.openDecrypted(file).also { callback.onDataReady(it) }
+                return
+            }
+            val size = model.size
+            if (size != null && size < AttachmentDownloader.RESUMABLE_MIN_SIZE && loadInMemory(callback)) {
+                return
+            }
+            val download = downloader.newDownload(model)
+            this.download = download
+            stream = model.openDecrypted(download.execute()).also { callback.onDataReady(it) }
+        } catch (e: IOException) {
+            callback.onLoadFailed(e)
+        } catch (e: GeneralSecurityException) {
+            callback.onLoadFailed(e)
+        }
+    }
+
+    // False when the response is larger than the event said, or does not tell: downloaded to disk then
+    private fun loadInMemory(callback: DataFetcher.DataCallback<in InputStream>): Boolean {
+        val request = MediaUrlResolver.newRequest(MxcMediaModel.fullSize(model.mxcUri))
+            ?: throw IOException("Unable to resolve ${model.mxcUri}")
+        val call = client.newCall(request.build())
+        this.call = call
+        call.execute().use { response ->
+            val body = response.body
+            if (!response.isSuccessful || body == null) {
+                callback.onLoadFailed(HttpException(response.message, response.code))
+                return true
+            }
+            val contentLength = body.contentLength()
+            if (contentLength < 0 || contentLength >= AttachmentDownloader.RESUMABLE_MIN_SIZE) {
+                return false
+            }
+            // AES-CTR, the plaintext is exactly as long as the ciphertext
+            val plainText = DecryptedBuffer(contentLength.toInt())
+            // The ciphertext is cached on the way, the entry is dropped unless its hash matches
+            diskCache.put(model.mxcUri, model.sha256) { cacheOutput ->
+                val digest = AttachmentDecryptor.newDigest()
+                body.byteStream().use {
+                    AttachmentDecryptor.decrypt(it, plainText, model.createDecryptCipher(), digest, cacheOutput)
+                }
+                AttachmentDecryptor.verify(digest, AttachmentDecryptor.requireSha256(model.mxcUri, model.sha256))
+            }
+            stream = plainText.toInputStream().also { callback.onDataReady(it) }
+            return true
+        }
+    }
+
+    override fun cleanup() {
+        try {
+            stream?.close()
+        } catch (e: IOException) {
+            // Ignored
+        }
+    }
+
+    override fun cancel() {
+        call?.cancel()
+        download?.cancel()
+    }
+
+    override fun getDataClass() = InputStream::class.java
+
+    override fun getDataSource() = dataSource
+}
+
+/** Hands its bytes to the decoder without the copy of [toByteArray]. */
+private class DecryptedBuffer(size: Int) : ByteArrayOutputStream(size) {
+    fun toInputStream() = ByteArrayInputStream(buf, 0, count)
+}
@@ -0,0 +1,51 @@
+package com.me.matrixchat.media.glide
+
+import android.content.Context
+import com.bumptech.glide.load.Options
+import com.bumptech.glide.load.model.ModelLoader
+import com.bumptech.glide.load.model.ModelLoaderFactory
+import com.bumptech.glide.load.model.MultiModelLoaderFactory
+import com.bumptech.glide.signature.ObjectKey
+import com.me.matrixchat.media.AttachmentDiskCache
+import com.me.matrixchat.media.AttachmentDownloader
+import com.me.matrixchat.media.EncryptedFileModel
+import com.me.matrixchat.network.HttpClientProvider
+import okhttp3.Call
+import java.io.InputStream
+
+/**
+ * Glide [ModelLoader] for [EncryptedFileModel], registered by MatrixChatGlideModule.
+ * Entries are keyed by mxc uri only, the url and the token are resolved at fetch time.
+ */
+class EncryptedFileModelLoader(
+    private val client: Call.Factory,
+    private val diskCache: AttachmentDiskCache,
+    private val downloader: AttachmentDownloader
+) : ModelLoader<EncryptedFileModel, InputStream> {
+
+    override fun buildLoadData(
+        model: EncryptedFileModel,
+        width: Int,
+        height: Int,
+        options: Options
+    ): ModelLoader.LoadData<InputStream> {
+        return ModelLoader.LoadData(ObjectKey(model.mxcUri), EncryptedFileDataFetcher(client, model, diskCache, downloader))
+    }
+
+    override fun handles(model: EncryptedFileModel) = true
+
+    class Factory(private val context: Context) : ModelLoaderFactory<EncryptedFileModel, InputStream> {
+
+        override fun build(multiFactory: MultiModelLoaderFactory): ModelLoader<EncryptedFileModel, InputStream> {
+            return EncryptedFileModelLoader(
+                HttpClientProvider.okHttpClient,
+                AttachmentDiskCache.getInstance(context),
+                AttachmentDownloader.getInstance(context)
+            )
+        }
+
+        override fun teardown() {
+            // noop
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.me.matrixchat.media.glide
+
+import com.bumptech.glide.Priority
+import com.bumptech.glide.load.DataSource
+import com.bumptech.glide.load.HttpException
+import com.bumptech.glide.load.Options
+import com.bumptech.glide.load.data.DataFetcher
+import com.bumptech.glide.load.model.ModelLoader
+import com.bumptech.glide.load.model.ModelLoaderFactory
+import com.bumptech.glide.load.model.MultiModelLoaderFactory
+import com.bumptech.glide.signature.ObjectKey
+import com.me.matrixchat.media.InFlightRequests
+import com.me.matrixchat.media.MediaUrlResolver
+import com.me.matrixchat.media.MxcMediaModel
+import com.me.matrixchat.network.HttpClientProvider
+import okhttp3.Call
+import okhttp3.ResponseBody
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Glide [ModelLoader] for [MxcMediaModel], registered by MatrixChatGlideModule. The model itself is
+ * the cache key, the url and the token are only resolved when the data is fetched.
+ *
+ * The same thumbnail bound to several views at once (same avatar at two sizes, two crops) is
+ * different Glide jobs: they share a single download through [inFlight].
+ */
+class MxcMediaModelLoader(private val client: Call.Factory) : ModelLoader<MxcMediaModel, InputStream> {
+
+    override fun buildLoadData(
+        model: MxcMediaModel,
+        width: Int,
+        height: Int,
+        options: Options
+    ): ModelLoader.LoadData<InputStream> {
+        return ModelLoader.LoadData(ObjectKey(model), MxcMediaDataFetcher(client, model))
+    }
+
+    override fun handles(model: MxcMediaModel) = true
+
+    companion object {
+        internal val inFlight = InFlightRequests<MxcMediaModel, ByteArray>()
+    }
+
+    class Factory : ModelLoaderFactory<MxcMediaModel, InputStream> {
+
+        override fun build(multiFactory: MultiModelLoaderFactory): ModelLoader<MxcMediaModel, InputStream> {
+            return MxcMediaModelLoader(HttpClientProvider.okHttpClient)
+        }
+
+        override fun teardown() {
+            // noop
+        }
+    }
+}
+
+internal class MxcMediaDataFetcher(
+    private val client: Call.Factory,
+    private val model: MxcMediaModel
+) : DataFetcher<InputStream> {
+
+    @Volatile
+    private var call: Call? = null
+
+    @Volatile
+    private var cancelled = false
+
+    private var stream: InputStream? = null
+
+    override fun loadData(priority: Priority, callback: DataFetcher.DataCallback<in InputStream>) {
+        try {
+            stream = if (model.isFullSize) {
+                // Originals are opened one at a time and can be large, they are streamed
+                execute().byteStream()
+            } else {
+                val bytes = MxcMediaModelLoader.inFlight.get(model, { cancelled }) {
+                    execute().use { it.bytes() }
+                }
+                ByteArrayInputStream(bytes)
+            }
+            callback.onDataReady(stream)
+        } catch (e: IOException) {
+            callback.onLoadFailed(e)
+        }
+    }
+
+    private fun execute(): ResponseBody {
+        val request = MediaUrlResolver.newRequest(model)
+            ?: throw IOException("Unable to resolve ${model.mxcUri}")
+        val call = client.newCall(request.build())
+        this.call = call
+        if (cancelled) {
+            call.cancel()
+        }
+        val response = call.execute()
+        val body = response.body
+        if (!response.isSuccessful || body == null) {
+            response.close()
+            throw HttpException(response.message, response.code)
+        }
+        return body
+    }
+
+    override fun cleanup() {
+        try {
+            stream?.close()
+        } catch (e: IOException) {
+            // Ignored
+        }
+    }
+
+    override fun cancel() {
+        cancelled = true
+        call?.cancel()
+    }
+
+    override fun getDataClass() = InputStream::class.java
+
+    override fun getDataSource() = DataSource.REMOTE
+}
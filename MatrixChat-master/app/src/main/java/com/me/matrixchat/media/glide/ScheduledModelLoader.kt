@@ -0,0 +1,131 @@
+package com.me.matrixchat.media.glide
+
+import com.bumptech.glide.Priority
+import com.bumptech.glide.load.DataSource
+import com.bumptech.glide.load.Options
+import com.bumptech.glide.load.data.DataFetcher
+import com.bumptech.glide.load.model.ModelLoader
+import com.bumptech.glide.load.model.ModelLoaderFactory
+import com.bumptech.glide.load.model.MultiModelLoaderFactory
+import com.me.matrixchat.media.MediaDownloadScheduler
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Wraps a [ModelLoader] so that its fetches run on the [MediaDownloadScheduler] instead of Glide's
+ * source executor. [keyOf] gives the key the timeline uses for the model, its image url or mxc uri.
+ */
+class ScheduledModelLoader<Model : Any, Data : Any>(
+    private val delegate: ModelLoader<Model, Data>,
+    private val scheduler: MediaDownloadScheduler,
+    private val keyOf: (Model) -> String
+) : ModelLoader<Model, Data> {
+
+    override fun buildLoadData(model: Model, width: Int, height: Int, options: Options): ModelLoader.LoadData<Data>? {
+        val loadData = delegate.buildLoadData(model, width, height, options) ?: return null
+        return ModelLoader.LoadData(
+            loadData.sourceKey,
+            loadData.alternateKeys,
+            ScheduledDataFetcher(loadData.fetcher, keyOf(model), scheduler)
+        )
+    }
+
+    override fun handles(model: Model) = delegate.handles(model)
+
+    class Factory<Model : Any, Data : Any>(
+        private val delegate: ModelLoaderFactory<Model, Data>,
+        private val scheduler: MediaDownloadScheduler,
+        private val keyOf: (Model) -> String
+    ) : ModelLoaderFactory<Model, Data> {
+
+        override fun build(multiFactory: MultiModelLoaderFactory): ModelLoader<Model, Data> {
+            return ScheduledModelLoader(delegate.build(multiFactory), scheduler, keyOf)
+        }
+
+        override fun teardown() {
+            delegate.teardown()
+        }
+    }
+}
+
+/**
+ * Queues the delegate fetch on the scheduler. Glide's callback is then invoked from the scheduler
+ * thread, or from the delegate's own threads, which Glide supports for asynchronous fetchers.
+ * The scheduler slot is held until the delegate calls back, not only while its loadData runs. A
+ * cancelled load frees its slot at once if loadData has returned, otherwise once it returns: a
+ * synchronous fetcher still runs its call on the scheduler thread until then.
+ */
+internal class ScheduledDataFetcher<Data : Any>(
+    private val delegate: DataFetcher<Data>,
+    private val key: String,
+    private val scheduler: MediaDownloadScheduler
+) : DataFetcher<Data> {
+
+    @Volatile
+    private var ticket: MediaDownloadScheduler.Ticket? = null
+
+    @Volatile
+    private var done: Runnable? = null
+
+    @Volatile
+    private var cancelled = false
+
+    // True while the delegate's loadData runs on the scheduler thread
+    @Volatile
+    private var loading = false
+
+    override fun loadData(priority: Priority, callback: DataFetcher.DataCallback<in Data>) {
+        ticket = scheduler.submit(key, priority.toSchedulerPriority()) { done ->
+            this.done = done
+            loading = true
+            val reported = AtomicBoolean()
+            try {
+                if (!cancelled) {
+                    delegate.loadData(priority, object : DataFetcher.DataCallback<Data> {
+                        override fun onDataReady(data: Data?) {
+                            done.run()
+                            if (reported.compareAndSet(false, true)) callback.onDataReady(data)
+                        }
+
+                        override fun onLoadFailed(e: Exception) {
+                            done.run()
+                            if (reported.compareAndSet(false, true)) callback.onLoadFailed(e)
+                        }
+                    })
+                }
+            } catch (e: Exception) {
+                // Glide's DecodeJob would have reported it, the request must not hang
+                done.run()
+                if (reported.compareAndSet(false, true)) callback.onLoadFailed(e)
+            } finally {
+                loading = false
+                // cancel() left the slot to the end of loadData
+                if (cancelled) done.run()
+            }
+        }
+    }
+
+    override fun cleanup() {
+        delegate.cleanup()
+    }
+
+    override fun cancel() {
+        cancelled = true
+        // Still queued: it never starts. Already running: the delegate aborts its call
+        if (ticket?.cancel() != true) {
+            delegate.cancel()
+            // A cancelled delegate is not required to call back. Still in loadData, the slot is
+            // freed when it returns
+            if (!loading) done?.run()
+        }
+    }
+
+    override fun getDataClass(): Class<Data> = delegate.dataClass
+
+    override fun getDataSource(): DataSource = delegate.dataSource
+
+    private fun Priority.toSchedulerPriority() = when (this) {
+        Priority.IMMEDIATE, Priority.HIGH -> MediaDownloadScheduler.Priority.VISIBLE
+        Priority.NORMAL -> MediaDownloadScheduler.Priority.NEAR_VIEWPORT
+        Priority.LOW -> MediaDownloadScheduler.Priority.PREFETCH
+    }
+}
@@ -0,0 +1,62 @@
+package com.me.matrixchat.network
+
+import okhttp3.ConnectionPool
+import okhttp3.Dispatcher
+import okhttp3.OkHttpClient
+import retrofit2.Retrofit
+import retrofit2.converter.gson.GsonConverterFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Application wide HTTP stack: one [OkHttpClient], so one dispatcher and one connection pool for
+ * the app's own traffic (Glide, the profile, media and recovery APIs).
+ * The Matrix SDK keeps its own client.
+ *
+ * Every call is timed by [HttpTimingEventListener].
+ */
+object HttpClientProvider {
+
+    // Both the homeserver and the recovery backend are a single host, allow more parallel
+    // media loads to it than the default of 5
+    private const val MAX_REQUESTS = 32
+    private const val MAX_REQUESTS_PER_HOST = 8
+    private const val MAX_IDLE_CONNECTIONS = 8
+    private const val KEEP_ALIVE_MINUTES = 5L
+
+    private const val CONNECT_TIMEOUT_SECONDS = 15L
+    private const val READ_TIMEOUT_SECONDS = 30L
+    private const val WRITE_TIMEOUT_SECONDS = 60L
+
+    val okHttpClient: OkHttpClient by lazy {
+        OkHttpClient.Builder()
+            .dispatcher(Dispatcher().apply {
+                maxRequests = MAX_REQUESTS
+                maxRequestsPerHost = MAX_REQUESTS_PER_HOST
+            })
+            .connectionPool(ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            // Uploads of full size images
+            .writeTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .eventListenerFactory(HttpTimingEventListener.FACTORY)
+            .build()
+    }
+
+    private val retrofits = ConcurrentHashMap<String, Retrofit>()
+
+    /**
+     * Returns the shared [Retrofit] for [baseUrl], built on [okHttpClient] with the Gson converter.
+     * A trailing slash is added when missing.
+     */
+    fun retrofit(baseUrl: String): Retrofit {
+        val normalized = if (baseUrl.endsWith("/")) baseUrl else "$baseUrl/"
+        return retrofits.getOrPut(normalized) {
+            Retrofit.Builder()
+                .baseUrl(normalized)
+                .client(okHttpClient)
+                .addConverterFactory(GsonConverterFactory.create())
+                .build()
+        }
+    }
+}
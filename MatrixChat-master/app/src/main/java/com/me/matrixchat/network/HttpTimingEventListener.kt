@@ -0,0 +1,151 @@
+package com.me.matrixchat.network
+
+import android.util.Log
+import okhttp3.Call
+import okhttp3.EventListener
+import okhttp3.Handshake
+import okhttp3.HttpUrl
+import okhttp3.Protocol
+import okhttp3.Response
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Records the DNS, connect, TLS and time to first byte of every call, aggregated per endpoint.
+ *
+ * An endpoint is the host plus the first [ENDPOINT_PATH_SEGMENTS] path segments, e.g.
+ * `example.org/_matrix/client/v1/media`, so media ids and user ids do not each get their own entry.
+ * Phases which did not happen for a call (a pooled connection skips DNS, connect and TLS) are not counted.
+ */
+class HttpTimingEventListener private constructor(
+    private val endpoint: String
+) : EventListener() {
+
+    class Timing {
+        var count = 0L
+            private set
+        var totalMs = 0L
+            private set
+        var maxMs = 0L
+            private set
+
+        val averageMs: Long
+            get() = if (count == 0L) 0 else totalMs / count
+
+        @Synchronized
+        internal fun record(ms: Long) {
+            count++
+            totalMs += ms
+            if (ms > maxMs) maxMs = ms
+        }
+
+        @Synchronized
+        override fun toString() = "n=$count avg=${averageMs}ms max=${maxMs}ms"
+    }
+
+    class EndpointStats {
+        val dns = Timing()
+        val connect = Timing()
+        val tls = Timing()
+        val timeToFirstByte = Timing()
+        val total = Timing()
+
+        @Volatile
+        var failureCount = 0L
+            private set
+
+        @Synchronized
+        internal fun recordFailure() {
+            failureCount++
+        }
+
+        override fun toString() =
+            "dns[$dns] connect[$connect] tls[$tls] ttfb[$timeToFirstByte] total[$total] failures=$failureCount"
+    }
+
+    private var callStart = 0L
+    private var dnsStart = 0L
+    private var connectStart = 0L
+    private var secureConnectStart = 0L
+    private var firstByteRecorded = false
+
+    private val stats: EndpointStats
+        get() = endpointStats.getOrPut(endpoint) { EndpointStats() }
+
+    override fun callStart(call: Call) {
+        callStart = System.nanoTime()
+    }
+
+    override fun dnsStart(call: Call, domainName: String) {
+        dnsStart = System.nanoTime()
+    }
+
+    override fun dnsEnd(call: Call, domainName: String, inetAddressList: List<InetAddress>) {
+        stats.dns.record(elapsedMs(dnsStart))
+    }
+
+    override fun connectStart(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy) {
+        connectStart = System.nanoTime()
+    }
+
+    override fun secureConnectStart(call: Call) {
+        secureConnectStart = System.nanoTime()
+    }
+
+    override fun secureConnectEnd(call: Call, handshake: Handshake?) {
+        stats.tls.record(elapsedMs(secureConnectStart))
+    }
+
+    override fun connectEnd(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy, protocol: Protocol?) {
+        stats.connect.record(elapsedMs(connectStart))
+    }
+
+    override fun responseHeadersStart(call: Call) {
+        // Follow-ups and retries go through the same listener, only the first response counts
+        if (!firstByteRecorded) {
+            firstByteRecorded = true
+            stats.timeToFirstByte.record(elapsedMs(callStart))
+        }
+    }
+
+    override fun responseHeadersEnd(call: Call, response: Response) {
+        if (response.code >= 500) {
+            Log.d(TAG, "${response.code} from $endpoint")
+        }
+    }
+
+    override fun callEnd(call: Call) {
+        stats.total.record(elapsedMs(callStart))
+    }
+
+    override fun callFailed(call: Call, ioe: IOException) {
+        stats.recordFailure()
+        Log.d(TAG, "Call to $endpoint failed after ${elapsedMs(callStart)}ms: ${ioe.message}")
+    }
+
+    private fun elapsedMs(startNanos: Long) = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+
+    companion object {
+        private const val TAG = "HttpTiming"
+        private const val ENDPOINT_PATH_SEGMENTS = 4
+
+        private val endpointStats = ConcurrentHashMap<String, EndpointStats>()
+
+        /** One listener per call, the phase start times are call specific. */
+        val FACTORY = EventListener.Factory { call -> HttpTimingEventListener(endpointOf(call.request().url)) }
+
+        /** Logs the timings recorded so far, one line per endpoint. */
+        fun dump() {
+            endpointStats.forEach { (endpoint, stats) -> Log.d(TAG, "$endpoint $stats") }
+        }
+
+        private fun endpointOf(url: HttpUrl): String {
+            val segments = url.pathSegments.take(ENDPOINT_PATH_SEGMENTS).filter { it.isNotEmpty() }
+            return url.host + segments.joinToString(separator = "/", prefix = "/")
+        }
+    }
+}
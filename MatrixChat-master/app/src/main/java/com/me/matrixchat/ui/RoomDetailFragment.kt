@@ -16,30 +16,23 @@
 
 package com.me.matrixchat.ui
 
-import android.content.Context
+import android.app.Dialog
 import android.content.Intent
-import android.graphics.Bitmap
-import android.graphics.drawable.BitmapDrawable
-import android.net.ConnectivityManager
+import android.graphics.Color
 import android.net.Uri
 import android.os.Bundle
 import android.provider.OpenableColumns
-import android.util.Base64
 import android.util.Log
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
 import android.widget.ImageView
-import android.widget.Toast
 import androidx.activity.result.contract.ActivityResultContracts
-import androidx.core.content.ContextCompat
 import androidx.core.os.bundleOf
 import androidx.fragment.app.Fragment
 import androidx.lifecycle.lifecycleScope
 import androidx.recyclerview.widget.LinearLayoutManager
-import com.bumptech.glide.Glide
-import com.bumptech.glide.load.model.GlideUrl
-import com.bumptech.glide.load.model.LazyHeaders
+import com.me.matrixchat.BuildConfig
 import com.me.matrixchat.Models.Message
 import com.me.matrixchat.ProfileActivity
 import com.me.matrixchat.R
@@ -54,37 +47,28 @@ import org.matrix.android.sdk.api.session.room.read.ReadService
 import org.matrix.android.sdk.api.session.room.timeline.*
 import org.matrix.android.sdk.api.util.toMatrixItem
 import com.me.matrixchat.SessionHolder
-import com.me.matrixchat.data.TimelineEventMessageWrapper
 import com.me.matrixchat.databinding.FragmentRoomDetailBinding
+import com.me.matrixchat.media.EncryptedFileModel
+import com.me.matrixchat.media.ImagePipeline
+import com.me.matrixchat.media.MxcMediaModel
+import com.me.matrixchat.media.MediaDownloadScheduler
+import com.me.matrixchat.media.OutgoingImageProcessor
+import com.me.matrixchat.network.HttpTimingEventListener
 import com.me.matrixchat.utils.*
 import com.stfalcon.chatkit.messages.MessagesListAdapter
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.runBlocking
-import kotlinx.coroutines.withContext
-import okhttp3.OkHttpClient
-import okhttp3.Request
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
 import org.matrix.android.sdk.api.session.Session
 import org.matrix.android.sdk.api.session.content.ContentAttachmentData
-import org.matrix.android.sdk.api.session.content.ContentUrlResolver
-import org.matrix.android.sdk.api.session.crypto.attachments.ElementToDecrypt
-import org.matrix.android.sdk.api.session.crypto.model.EncryptedFileInfo
 import org.matrix.android.sdk.api.session.events.model.EventType
-import org.matrix.android.sdk.api.session.events.model.toContent
 import org.matrix.android.sdk.api.session.events.model.toModel
 import org.matrix.android.sdk.api.session.room.model.message.MessageContent
 import org.matrix.android.sdk.api.session.room.model.message.MessageType
 import java.io.IOException
 import java.net.UnknownHostException
-import java.util.Date
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.coroutines.cancellation.CancellationException
-import org.matrix.android.sdk.api.session.room.model.message.MessageImageContent
-import org.matrix.android.sdk.api.session.room.model.message.MessageWithAttachmentContent
 import java.io.File
-import java.io.FileOutputStream
-import javax.crypto.Cipher
-import javax.crypto.CipherInputStream
-import javax.crypto.spec.IvParameterSpec
-import javax.crypto.spec.SecretKeySpec
 
 class RoomDetailFragment : Fragment(), Timeline.Listener, ToolbarConfigurable {
 
@@ -92,6 +76,9 @@ class RoomDetailFragment : Fragment(), Timeline.Listener, ToolbarConfigurable {
 
         private const val ROOM_ID_ARGS = "ROOM_ID_ARGS"
 
+        // Largest thumbnail size synapse generates by default, enough for a 200dp bubble
+        private const val TIMELINE_THUMBNAIL_SIZE = 640
+
         fun newInstance(roomId: String): RoomDetailFragment {
 
             val args = bundleOf(
@@ -125,30 +112,31 @@ class RoomDetailFragment : Fragment(), Timeline.Listener, ToolbarConfigurable {
     private val adapter = MessagesListAdapter<IMessage>(session.myUserId, object : ImageLoader {
         override fun loadImage(imageView: ImageView, resolvedUrl: String?, payload: Any?) {
             //loadAvatar(session,imageView, resolvedUrl, session.myUserId)
-            if (!resolvedUrl.isNullOrEmpty() && File(resolvedUrl).exists()) {
-                Glide.with(imageView.context)
-                    .load(File(resolvedUrl)) // Pass as a File, not a String path
-                    .placeholder(R.drawable.user_default)
-                    .error(R.drawable.backgroundless)
-                    .into(imageView)
-            } else {
-
-                val accessToken = session.sessionParams?.credentials?.accessToken ?: ""
-                // Build GlideUrl with the Authorization header
-                val glideUrl = GlideUrl(
-                    resolvedUrl,
-                    LazyHeaders.Builder()
-                        .addHeader("Authorization", "Bearer $accessToken")
-                        .build()
-                )
-                Glide.with(this@RoomDetailFragment)
-                    .load(glideUrl)  // Use GlideUrl directly to preserve authentication headers
-                    .into(imageView)
+            // Downloads follow the scroll position, see VisibleMediaTracker
+            resolvedUrl?.let { mediaTracker?.onImageBound(imageView, it) }
+            val remoteImage = resolvedUrl?.let { remoteImages[it] }
+            if (remoteImage == null && resolvedUrl?.startsWith("mxc://") == true) {
+                // Not an image of the timeline: the avatar of a sender
+                avatarRenderer.render(resolvedUrl, null, imageView)
+                return
             }
+            // Remote images are loaded from their mxc uri, never from a url carrying the token
+            val model: Any? = remoteImage ?: resolvedUrl?.let { url -> File(url).takeIf { it.exists() } }
+            ImagePipeline.loadTimelineImage(imageView, model)
         }
 
     })
-    //private val timelineEventListProcessor = TimelineEventListProcessor(adapter)
+    private val timelineEventListProcessor = TimelineEventListProcessor(adapter)
+    private var snapshotConflater: TimelineSnapshotConflater<List<Message>>? = null
+    private var messageCache: TimelineMessageCache? = null
+    private var mediaTracker: VisibleMediaTracker? = null
+
+    // Thumbnails of the images being sent by the uri of the processed file
+    private val localThumbnails = ConcurrentHashMap<String, String>()
+
+    // Models of the remote images of the timeline (EncryptedFileModel or MxcMediaModel) by mxc uri,
+    // which is what their Message carries as image url
+    private val remoteImages = ConcurrentHashMap<String, Any>()
 
     override fun onCreateView(
         inflater: LayoutInflater,
@@ -205,8 +193,12 @@ class RoomDetailFragment : Fragment(), Timeline.Listener, ToolbarConfigurable {
             }
         })
 
+        adapter.setOnMessageClickListener { message ->
+            (message as? Message)?.takeIf { it.fullSizeUrl != null }?.let { openFullSizeImage(it) }
+        }
         views.timelineEventList.setAdapter(adapter)
         views.timelineEventList.itemAnimator = null
+        mediaTracker = VisibleMediaTracker(views.timelineEventList, MediaDownloadScheduler.shared)
         views.timelineEventList.addOnScrollListener(RecyclerScrollMoreListener(views.timelineEventList.layoutManager as LinearLayoutManager) {
             if (timeline?.hasMoreToLoad(Timeline.Direction.BACKWARDS).orTrue()) {
                 timeline?.paginate(Timeline.Direction.BACKWARDS, 50)
@@ -217,6 +209,14 @@ class RoomDetailFragment : Fragment(), Timeline.Listener, ToolbarConfigurable {
             room?.readService()?.markAsRead(ReadService.MarkAsReadParams.READ_RECEIPT)
         }
 
+        messageCache = TimelineMessageCache.forRoom(roomId)
+        snapshotConflater = TimelineSnapshotConflater(
+            viewLifecycleOwner.lifecycleScope,
+            ::mapSnapshot
+        ) { chatMessages ->
+            timelineEventListProcessor.onNewSnapshot(chatMessages)
+        }
+
         // Create some settings to configure timeline
         val timelineSettings = TimelineSettings(
             initialSize = 30
@@ -304,6 +304,24 @@ class RoomDetailFragment : Fragment(), Timeline.Listener, ToolbarConfigurable {
             it.dispose()
         }
         timeline = null
+        // Pipeline statistics, for debug builds only
+        if (BuildConfig.DEBUG) {
+            snapshotConflater?.also {
+                Log.d("Timeline", "Dropped ${it.droppedCount} of ${it.receivedCount} timeline snapshots")
+            }
+            messageCache?.also {
+                Log.d("Timeline", "Message cache: ${it.hitCount} hits, ${it.missCount} misses")
+            }
+            MediaDownloadScheduler.shared.dump()
+            ImagePipeline.stats.dump()
+            HttpTimingEventListener.dump()
+        }
+        snapshotConflater = null
+        messageCache = null
+        mediaTracker?.detach()
+        mediaTracker = null
+        remoteImages.clear()
+        localThumbnails.clear()
         room = null
         super.onDestroyView()
     }
@@ -321,157 +339,180 @@ class RoomDetailFragment : Fragment(), Timeline.Listener, ToolbarConfigurable {
     override fun onTimelineUpdated(snapshot: List<TimelineEvent>) {
         // Each time the timeline is updated it will be called.
         // It can happens when sync returns, paginating, and updating (local echo, decryption finished...)
-        // You probably want to process with DiffUtil before dispatching to your recyclerview
+        // Snapshots are conflated: only the latest one is mapped, off the main thread, see TimelineSnapshotConflater
+        snapshotConflater?.submit(snapshot)
+    }
+
+    private suspend fun mapSnapshot(snapshot: List<TimelineEvent>): List<Message> {
+        val cache = messageCache ?: return emptyList()
         //var filteredSnapshot = snapshot.filter { it.root.type == "m.room.message"}
-        lifecycleScope.launch {
-            val chatMessages = snapshot
-                .filter { it.root.type == EventType.ENCRYPTED || it.root.type == EventType.MESSAGE }
-                .mapNotNull { event ->
+        return snapshot
+            .filter { it.root.type == EventType.ENCRYPTED || it.root.type == EventType.MESSAGE }
+            .mapNotNull { event ->
+                // Let a newer snapshot cancel this one between two events
+                currentCoroutineContext().ensureActive()
+                // Events which did not change since the previous snapshot are not parsed again
+                cache.getOrPut(event, ::mapEvent)
+                    ?.also { message ->
+                        message.encryptedFile?.let { remoteImages[it.mxcUri] = it }
+                        message.media?.let { remoteImages[it.mxcUri] = it }
+                    }
+            }
+    }
+
+    private suspend fun mapEvent(event: TimelineEvent): Message? {
+        return try {
+            val contentJson = event.root.getClearContent()
+            val content =
+                contentJson.toModel<MessageContent>() ?: return null
+
+            val senderId = event.root.senderId
+            val eventId = event.eventId
+            val timestamp =
+                event.root.originServerTs?.toString() ?: System.currentTimeMillis()
+                    .toString()
+
+            when (content.msgType) {
+                MessageType.MSGTYPE_TEXT -> {
+                    Message(
+                        event,
+                        eventId,
+                        senderId,
+                        room?.roomId,
+                        content.body,
+                        null,
+                        timestamp,
+                        false
+                    )
+                }
+
+
+                MessageType.MSGTYPE_IMAGE ->  {
                     try {
-                        val contentJson = event.root.getClearContent()
-                        val content =
-                            contentJson.toModel<MessageContent>() ?: return@mapNotNull null
-
-                        val senderId = event.root.senderId
-                        val eventId = event.eventId
-                        val timestamp =
-                            event.root.originServerTs?.toString() ?: System.currentTimeMillis()
-                                .toString()
-
-                        when (content.msgType) {
-                            MessageType.MSGTYPE_TEXT -> {
-                                Message(
+                        val contentJson = event.root.getClearContent() as? Map<*, *>
+                        val info = contentJson?.get("info") as? Map<*, *>
+                        val message = if (contentJson?.containsKey("url") == true) {
+                            //decrypted
+                            val mxc = contentJson["url"] as? String
+                            if (mxc != null && !mxc.startsWith("mxc://")) {
+                                // Local echo of an image being uploaded, its url is the local file
+                                return Message(
                                     event,
                                     eventId,
                                     senderId,
                                     room?.roomId,
-                                    content.body,
                                     null,
+                                    localThumbnails[mxc] ?: Uri.parse(mxc).path,
                                     timestamp,
                                     false
                                 )
                             }
-
-
-                            MessageType.MSGTYPE_IMAGE ->  {
-                                try {
-                                    val contentJson = event.root.getClearContent() as? Map<*, *>
-                                    val message = if (contentJson?.containsKey("url") == true) {
-                                        //decrypted
-                                        val mxc = contentJson["url"] as? String
-                                        val publicUrl = session.contentUrlResolver()
-                                            .resolveFullSize(mxc)
-                                            ?.let { u -> "$u?access_token=${session.sessionParams.credentials.accessToken}" }
-                                        Message(
-                                            event,
-                                            eventId,
-                                            senderId,
-                                            room?.roomId,
-                                            null,
-                                            publicUrl,
-                                            timestamp,
-                                            false
-                                        )
-                                    } else {
-                                        //encrypted
-                                        val fileMap = contentJson?.get("file") as? Map<*, *>
-                                        val mxcUri = fileMap?.get("url") as? String
-                                        val ivB64 = fileMap?.get("iv") as? String
-                                        val keyMap = fileMap?.get("key") as? Map<*, *>
-                                        val keyB64 = keyMap?.get("k") as? String
-
-                                        val baseUrl = session.contentUrlResolver()
-                                            .resolveFullSize(mxcUri)!!
-                                            ?.replace("/_matrix/media/r0/", "/_matrix/client/v1/media/")
-
-                                        val authUrl =
-                                            "$baseUrl?access_token=${session.sessionParams.credentials.accessToken}"
-
-                                        val localFile = withContext(Dispatchers.IO) {
-                                            fetchAndDecrypt(contentJson.toContent().toModel<MessageImageContent>()?.body, authUrl, keyB64, ivB64)
-                                        }
-                                        Message(
-                                            event,
-                                            eventId,
-                                            senderId,
-                                            room?.roomId,
-                                            null,
-                                            localFile.absolutePath,
-                                            timestamp,
-                                            false
-                                        )
-                                    }
-                                    message // returned value
-                                } catch (t: Throwable) {
-                                    Log.e("Matrix", "img load failed", t)
-                                    null
-                                }
+                            mxc ?: return null
+                            val thumbnailMxc = info?.get("thumbnail_url") as? String
+                            // A server side thumbnail is enough for the bubble, the full size is only
+                            // fetched when the image is opened
+                            val bubble = if (thumbnailMxc != null) {
+                                MxcMediaModel.fullSize(thumbnailMxc)
+                            } else {
+                                MxcMediaModel.thumbnail(mxc, TIMELINE_THUMBNAIL_SIZE)
+                            }
+                            Message(
+                                event,
+                                eventId,
+                                senderId,
+                                room?.roomId,
+                                null,
+                                bubble.mxcUri,
+                                timestamp,
+                                false
+                            ).apply {
+                                media = bubble
+                                fullSizeUrl = mxc
+                            }
+                        } else {
+                            //encrypted
+                            val file = toEncryptedFileModel(
+                                contentJson?.get("file") as? Map<*, *>,
+                                (info?.get("size") as? Number)?.toLong()
+                            ) ?: return null
+                            // Encrypted media cannot be thumbnailed by the server, only the sender's
+                            // thumbnail_file avoids downloading the full file for the bubble
+                            val thumbnail = toEncryptedFileModel(
+                                info?.get("thumbnail_file") as? Map<*, *>,
+                                ((info?.get("thumbnail_info") as? Map<*, *>)?.get("size") as? Number)?.toLong()
+                            ) ?: file
+
+                            // Nothing is downloaded here, Glide streams and decrypts it when the row is bound
+                            Message(
+                                event,
+                                eventId,
+                                senderId,
+                                room?.roomId,
+                                null,
+                                thumbnail.mxcUri,
+                                timestamp,
+                                false
+                            ).apply {
+                                encryptedFile = thumbnail
+                                fullSizeUrl = file.mxcUri
+                                fullSizeFile = file
                             }
-
-
-                            else -> null // Skip other types
                         }
-
-                    } catch (e: Exception) {
-                        Log.e("TimelineDecrypt", "Error processing message", e)
+                        message // returned value
+                    } catch (e: CancellationException) {
+                        throw e
+                    } catch (t: Throwable) {
+                        Log.e("Matrix", "img load failed", t)
                         null
                     }
-                }.reversed()
+                }
 
 
-            adapter.clear()
-            adapter.addToEnd(chatMessages, true)
+                else -> null // Skip other types
+            }
 
-            //timelineEventListProcessor.onNewSnapshot(snapshot, viewLifecycleOwner)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Log.e("TimelineDecrypt", "Error processing message", e)
+            null
         }
     }
 
-    private suspend fun fetchAndDecrypt(name: String?, url: String, keyB64: String?, ivB64: String?): File {
-        withContext(Dispatchers.Main) {
-            views.progressBar3.visibility = View.VISIBLE
+    /**
+     * Shows the original of a timeline image full screen, this is the only place it is downloaded.
+     * The bubble image is displayed until it is ready.
+     */
+    private fun openFullSizeImage(message: Message) {
+        val fullSizeUrl = message.fullSizeUrl ?: return
+        val imageView = ImageView(requireContext()).apply {
+            scaleType = ImageView.ScaleType.FIT_CENTER
+            setBackgroundColor(Color.BLACK)
         }
-        // 3a. Prepare cipher
-        val keyBytes = Base64.decode(keyB64, Base64.URL_SAFE or Base64.NO_PADDING or Base64.NO_WRAP)
-        val key = SecretKeySpec(keyBytes, "AES")
-        val iv = IvParameterSpec(Base64.decode(ivB64, Base64.DEFAULT))
-        val cipher = Cipher.getInstance("AES/CTR/NoPadding").apply {
-            init(Cipher.DECRYPT_MODE, key, iv)
+        val dialog = Dialog(requireContext(), android.R.style.Theme_Black_NoTitleBar_Fullscreen).apply {
+            setContentView(imageView)
+            setOnDismissListener { ImagePipeline.clear(imageView) }
         }
+        imageView.setOnClickListener { dialog.dismiss() }
 
-        // 3b. Download over OkHttp
-        val client = OkHttpClient()
-        val resp = client.newCall(Request.Builder().url(url).build()).execute()
-        val cis = CipherInputStream(resp.body!!.byteStream(), cipher)
-
-        // 3c. Write out decrypted bytes
-        val outFile = File(context?.cacheDir, name)
-        FileOutputStream(outFile).use { fos ->
-            cis.copyTo(fos)
-        }
-        withContext(Dispatchers.Main) {
-            views.progressBar3.visibility = View.GONE
-        }
-        return outFile
+        ImagePipeline.loadFullSize(
+            imageView,
+            message.fullSizeFile ?: MxcMediaModel.fullSize(fullSizeUrl),
+            message.encryptedFile ?: message.media
+        )
+        dialog.show()
     }
 
-
-    private fun getDefaultImageFile(): File {
-        val drawable = ContextCompat.getDrawable(
-            requireContext(),
-            R.drawable.user_default
-        )
-        val bitmap = (drawable as BitmapDrawable).bitmap
-        val file =
-            File(context?.cacheDir, "default_image.jpg")
-        val out = FileOutputStream(file)
-        bitmap.compress(
-            Bitmap.CompressFormat.JPEG,
-            100,
-            out
-        )
-        out.flush()
-        out.close()
-        return file
+    /**
+     * Builds the model of an EncryptedFileInfo (`file` or `info.thumbnail_file` of an encrypted
+     * image), or null when it has no url.
+     */
+    private fun toEncryptedFileModel(fileMap: Map<*, *>?, size: Long?): EncryptedFileModel? {
+        val mxcUri = fileMap?.get("url") as? String ?: return null
+        val sha256 = (fileMap["hashes"] as? Map<*, *>)?.get("sha256") as? String
+        val ivB64 = fileMap["iv"] as? String
+        val keyB64 = (fileMap["key"] as? Map<*, *>)?.get("k") as? String
+        return EncryptedFileModel(mxcUri, keyB64, ivB64, sha256, size)
     }
 
     private fun loadAvatar(
@@ -483,38 +524,8 @@ class RoomDetailFragment : Fragment(), Timeline.Listener, ToolbarConfigurable {
         try {
 
             if (!avatarUrl.isNullOrEmpty() && (avatarUrl.startsWith("mxc://"))) {
-                // Resolve the MXC URI to a thumbnail URL using the v1 endpoint.
-                // Note: Many SDKs let you pass an argument (or use a different resolver) to generate a v1 URL.
-                val resolvedUrl = session.contentUrlResolver().resolveThumbnail(
-                    avatarUrl,
-                    100,
-                    100,
-                    ContentUrlResolver.ThumbnailMethod.SCALE
-                )?.replace("/_matrix/media/r0/", "/_matrix/client/v1/media/")
-
-                if (resolvedUrl != null) {
-                    // Retrieve the access token – or hardcode it if necessary.
-                    // For example, using a hardcoded token:
-                    // val accessToken = "syt_dGVzdHVzZXIyMg_siKxJKwLMAlCATmYUmHB_2xRTgP"
-                    val accessToken = session.sessionParams?.credentials?.accessToken ?: ""
-
-                    // Build GlideUrl with the Authorization header
-                    val glideUrl = GlideUrl(
-                        resolvedUrl,
-                        LazyHeaders.Builder()
-                            .addHeader("Authorization", "Bearer $accessToken")
-                            .build()
-                    )
-                    Glide.with(imageView.context)
-                        .load(glideUrl)
-                        .placeholder(R.drawable.user_default) // Placeholder image resource
-                        .error(R.drawable.user_default)       // Error image resource
-                        .circleCrop()
-                        .into(imageView)
-                } else {
-                    // Fallback if resolution fails
-                    observeUserAvatar(session, imageView, user)
-                }
+                // Resolved to the v1 thumbnail endpoint, with the current token, when fetched
+                avatarRenderer.render(avatarUrl, user ?: session.myUserId, imageView, circle = true)
 
             } else {
                 // Fallback to observe user avatar if there's no valid MXC URI
@@ -535,13 +546,13 @@ class RoomDetailFragment : Fragment(), Timeline.Listener, ToolbarConfigurable {
     // Fallback: Listen to user profile updates
     private fun observeUserAvatar(session: Session, imageView: ImageView, user: String? = null) {
         if (user != null) {
-            avatarRenderer.render(user, imageView)
+            avatarRenderer.render(null, user, imageView, circle = true)
         } else {
             session.userService().getUserLive(session.myUserId)
                 .observe(viewLifecycleOwner) { user ->
                     val userMatrixItem =
                         user.map { it.toMatrixItem() }.getOrNull() ?: return@observe
-                    avatarRenderer.render(userMatrixItem, imageView)
+                    avatarRenderer.render(userMatrixItem, imageView, circle = true)
                 }
         }
     }
@@ -558,23 +569,41 @@ class RoomDetailFragment : Fragment(), Timeline.Listener, ToolbarConfigurable {
     private fun handleFileUri(uri: Uri) {
         val fileName = getFileNameFromUri(uri) ?: "attachment"
         val mimeType = requireContext().contentResolver.getType(uri) ?: "application/octet-stream"
-        val size = getFileSize(uri)
-
-        val contentAttachmentData = ContentAttachmentData(
-            name = fileName,
-            queryUri = uri,
-            mimeType = mimeType,
-            type = ContentAttachmentData.Type.IMAGE
-        )
+        val processor = OutgoingImageProcessor(requireContext())
 
         lifecycleScope.launch {
             try {
+                // Downscaled and re-encoded off the main thread when needed, the original when it cannot be
+                val processed = processor.process(uri, fileName)
+                val contentAttachmentData = if (processed != null) {
+                    // Shown by the local echo until the upload is done
+                    localThumbnails[processed.uri.toString()] = processed.thumbnail.absolutePath
+                    ContentAttachmentData(
+                        size = processed.size,
+                        height = processed.height.toLong(),
+                        width = processed.width.toLong(),
+                        name = processed.name,
+                        queryUri = processed.uri,
+                        mimeType = processed.mimeType,
+                        type = ContentAttachmentData.Type.IMAGE
+                    )
+                } else {
+                    ContentAttachmentData(
+                        size = getFileSize(uri),
+                        name = fileName,
+                        queryUri = uri,
+                        mimeType = mimeType,
+                        type = ContentAttachmentData.Type.IMAGE
+                    )
+                }
                 room?.sendService()?.sendMedia(
                     contentAttachmentData,
                     false,
                     roomIds = setOf(room?.roomId) as Set<String>
                 )
                 Log.d("Matrix", "File sent successfully")
+            } catch (e: CancellationException) {
+                throw e
             } catch (e: Exception) {
                 Log.e("Matrix", "Failed to send file: ${e.message}")
             }
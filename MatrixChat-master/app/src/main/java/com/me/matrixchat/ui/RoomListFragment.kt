@@ -30,6 +30,7 @@ import android.graphics.Color
 import android.graphics.drawable.ColorDrawable
 import android.os.Build
 import android.os.Bundle
+import android.os.SystemClock
 import android.text.InputType
 import android.util.Log
 import android.view.Gravity
@@ -51,36 +52,35 @@ import androidx.core.app.ActivityCompat
 import androidx.core.app.NotificationCompat
 import androidx.core.app.NotificationManagerCompat
 import androidx.core.content.ContextCompat
+import androidx.core.widget.doAfterTextChanged
 import androidx.fragment.app.Fragment
+import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.lifecycleScope
-import com.bumptech.glide.Glide
-import com.bumptech.glide.load.model.GlideUrl
-import com.bumptech.glide.load.model.LazyHeaders
+import androidx.lifecycle.repeatOnLifecycle
+import androidx.recyclerview.widget.DefaultItemAnimator
+import androidx.recyclerview.widget.LinearLayoutManager
 import com.me.matrixchat.AboutActivity
+import com.me.matrixchat.BuildConfig
 import com.me.matrixchat.Login
 import com.me.matrixchat.PasswordActivity
 import com.me.matrixchat.R
 import com.me.matrixchat.SessionHolder
-import com.me.matrixchat.data.RoomSummaryDialogWrapper
+import com.me.matrixchat.data.RoomSummaryRepository
 import com.me.matrixchat.databinding.FragmentRoomListBinding
 import com.me.matrixchat.formatter.RoomListDateFormatter
 import com.me.matrixchat.utils.AvatarRenderer
 import com.me.matrixchat.utils.MatrixItemColorProvider
 import com.stfalcon.chatkit.commons.ImageLoader
-import com.me.matrixchat.Adapters.DialogListAdapter
+import com.me.matrixchat.Adapters.PagedRoomListAdapter
 import com.me.matrixchat.ProfileActivity
 import com.me.matrixchat.SearchActivity
 //import com.stfalcon.chatkit.dialogs.DialogsListAdapter
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import org.matrix.android.sdk.api.session.Session
-import org.matrix.android.sdk.api.session.content.ContentUrlResolver
-import org.matrix.android.sdk.api.session.room.RoomSortOrder
-import org.matrix.android.sdk.api.session.room.RoomSummaryQueryParams
-import org.matrix.android.sdk.api.session.room.model.Membership
 import org.matrix.android.sdk.api.session.room.model.RoomSummary
-import org.matrix.android.sdk.api.session.room.roomSummaryQueryParams
 import org.matrix.android.sdk.api.util.toMatrixItem
 import java.io.IOException
 import java.net.UnknownHostException
@@ -113,14 +113,20 @@ class RoomListFragment : Fragment(), ToolbarConfigurable {
         var userStr = user ?: ""
         loadAvatar(session, imageView, url, userStr as String)
     }
-    private val roomAdapter = DialogListAdapter<RoomSummaryDialogWrapper>(imageLoader)
+    private val roomAdapter = PagedRoomListAdapter(imageLoader)
+    private val filterQuery = MutableStateFlow("")
+    private val searchFocused = MutableStateFlow(false)
     private lateinit var moreOptions: ImageView
 
 
     override fun onViewCreated(view: View, savedInstanceState: Bundle?) {
         super.onViewCreated(view, savedInstanceState)
         //configureToolbar(views.toolbar, displayBack = false)
-        views.roomSummaryList.setAdapter(roomAdapter)
+        val viewCreatedAt = SystemClock.uptimeMillis()
+        // Set up as ChatKit's DialogsList would, the paged adapter is not a DialogsListAdapter
+        views.roomSummaryList.layoutManager = LinearLayoutManager(context)
+        views.roomSummaryList.itemAnimator = DefaultItemAnimator().apply { supportsChangeAnimations = false }
+        views.roomSummaryList.adapter = roomAdapter
         moreOptions = views.moreOptions
 
         moreOptions.setOnClickListener { view ->
@@ -137,9 +143,11 @@ class RoomListFragment : Fragment(), ToolbarConfigurable {
         views.newRoom.setOnClickListener {
             createRoom()
         }
-        views.search.setOnClickListener {
+        // The search box filters the rooms locally, the user directory is behind its icon
+        views.searchEditText.doAfterTextChanged { filterQuery.value = it?.toString().orEmpty() }
+        views.searchEditText.setOnFocusChangeListener { _, hasFocus -> searchFocused.value = hasFocus }
+        views.searchUsersButton.setOnClickListener {
             startActivity(Intent(context, SearchActivity::class.java))
-
         }
         views.imgCont.setOnClickListener {
             startActivity(Intent(context, ProfileActivity::class.java))
@@ -150,37 +158,38 @@ class RoomListFragment : Fragment(), ToolbarConfigurable {
         views.toolbarTitleView.setOnClickListener {
             views.imgCont.performClick()
         }
-        // Create query to listen to room summary list
-        val roomSummariesQuery = roomSummaryQueryParams {
-            memberships = Membership.activeMemberships()
-        }
-        // Then you can subscribe to livedata..
-        session.roomService().getRoomSummariesLive(roomSummariesQuery).observe(viewLifecycleOwner) {
-            // ... And refresh your adapter with the list. It will be automatically updated when an item of the list is changed.
-            autoJoinInvitedRooms(session, it)
-            updateRoomList(it)
-        }
-
-        //handle notification badge
-        val queryParams = RoomSummaryQueryParams.Builder()
-            .apply {
-                memberships = listOf(Membership.JOIN)
+        // Session wide, the unread rooms are shared with MessageCheckWorker
+        val roomSummaries = RoomSummaryRepository.getInstance(session)
+        // Paged, only the rooms around the visible rows are loaded
+        var firstPageShown = false
+        roomSummaries.pagedRooms.observe(viewLifecycleOwner) { rooms ->
+            roomAdapter.submitList(rooms) {
+                if (!firstPageShown && rooms.isNotEmpty()) {
+                    firstPageShown = true
+                    Log.d("RoomListFragment", "First rooms shown ${SystemClock.uptimeMillis() - viewCreatedAt} ms " +
+                            "after the view was created, ${rooms.loadedCount}/${rooms.size} loaded")
+                }
             }
-            .build()
-        val sortOrder = RoomSortOrder.ACTIVITY
-        session.roomService().getRoomSummariesLive(queryParams, sortOrder)
-            .observe(viewLifecycleOwner) { roomSummaries ->
-                roomSummaries.forEach { summary ->
-                    if (summary.hasUnreadMessages) {
-                        showNewMessageNotification(
-                            requireActivity(),
-                            summary.displayName,
-                            summary.topic
-                        )
+        }
+        viewLifecycleOwner.lifecycleScope.launch {
+            viewLifecycleOwner.repeatOnLifecycle(Lifecycle.State.STARTED) {
+                launch {
+                    roomSummaries.filter(filterQuery, searchFocused).collect { roomAdapter.setFilter(it) }
+                }
+                launch {
+                    //handle notification badge
+                    roomSummaries.unread.collect { unread ->
+                        unread.forEach { summary ->
+                            showNewMessageNotification(
+                                requireActivity(),
+                                summary.displayName,
+                                summary.topic
+                            )
+                        }
                     }
                 }
             }
-
+        }
 
         // You can also listen to user. Here we listen to ourself to get our avatar
         viewLifecycleOwner.lifecycleScope.launch {
@@ -498,6 +507,7 @@ class RoomListFragment : Fragment(), ToolbarConfigurable {
                 views.progressBar2.visibility = View.GONE
             }
 
+            RoomSummaryRepository.release()
             SessionHolder.currentSession = null
             startActivity(Intent(context, Login::class.java))
             val prefs: SharedPreferences? =
@@ -507,6 +517,14 @@ class RoomListFragment : Fragment(), ToolbarConfigurable {
         }
     }
 
+    override fun onDestroyView() {
+        // Row and preview statistics, for debug builds only
+        if (BuildConfig.DEBUG) {
+            roomAdapter.dump()
+        }
+        super.onDestroyView()
+    }
+
     private fun showRoomDetail(roomSummary: RoomSummary) {
         val roomDetailFragment = RoomDetailFragment.newInstance(roomSummary.roomId)
         (activity as MainActivity).supportFragmentManager
@@ -516,63 +534,6 @@ class RoomListFragment : Fragment(), ToolbarConfigurable {
             .commit()
     }
 
-    private fun autoJoinInvitedRooms(session: Session, roomSummaries: List<RoomSummary>) {
-        viewLifecycleOwner.lifecycleScope.launch {
-            try {
-                roomSummaries.filter { it.membership == Membership.INVITE }.forEach { summary ->
-                    session.roomService().joinRoom(summary.roomId)
-                }
-            } catch (e: CancellationException) {
-                Log.e("CoroutineCancelled", "Coroutine was cancelled", e)
-                throw e // Rethrow to maintain structured concurrency
-            } catch (e: Exception) {
-                Log.e("RecoveryActivity", "Unexpected error in coroutine", e)
-            }
-        }
-    }
-
-    private fun olDupdateRoomList(roomSummaryList: List<RoomSummary>?) {
-        if (roomSummaryList == null) return
-        val sortedRoomSummaryList = roomSummaryList.sortedByDescending {
-            it.latestPreviewableEvent?.root?.originServerTs
-        }.map {
-            RoomSummaryDialogWrapper(it)
-        }
-        try {
-            roomAdapter.setItems(sortedRoomSummaryList)
-        } catch (e: Exception) {
-            Log.e("RecoveryActivity", "Error setting items to adapter", e)
-        }
-    }
-
-    private fun updateRoomList(roomSummaryList: List<RoomSummary>?) {
-        if (roomSummaryList == null) return
-
-        // Filter to include both JOINED and INVITED rooms with at least one previewable event
-        val filteredRooms = roomSummaryList.filter { roomSummary ->
-            (roomSummary.membership == Membership.JOIN || roomSummary.membership == Membership.INVITE) &&
-                    roomSummary.latestPreviewableEvent != null
-        }
-
-        // Remove duplicates just in case
-        val uniqueRooms = filteredRooms.distinctBy { it.roomId }
-
-        // Sort rooms by timestamp, newest first
-        val sortedRoomSummaryList = uniqueRooms.sortedByDescending {
-            it.latestPreviewableEvent?.root?.originServerTs ?: 0L
-        }.map {
-            RoomSummaryDialogWrapper(it)
-        }
-
-        // Update the adapter
-        try {
-            roomAdapter.setItems(sortedRoomSummaryList)
-        } catch (e: Exception) {
-            Log.e("RecoveryActivity", "Error setting items to adapter", e)
-        }
-    }
-
-
     private fun loadAvatar(
         session: Session,
         imageView: ImageView,
@@ -582,38 +543,8 @@ class RoomListFragment : Fragment(), ToolbarConfigurable {
         try {
 
             if (!avatarUrl.isNullOrEmpty() && avatarUrl.startsWith("mxc://")) {
-                // Resolve the MXC URI to a thumbnail URL using the v1 endpoint.
-                // Note: Many SDKs let you pass an argument (or use a different resolver) to generate a v1 URL.
-                val resolvedUrl = session.contentUrlResolver().resolveThumbnail(
-                    avatarUrl,
-                    100,
-                    100,
-                    ContentUrlResolver.ThumbnailMethod.SCALE
-                )?.replace("/_matrix/media/r0/", "/_matrix/client/v1/media/")
-
-                if (resolvedUrl != null) {
-                    // Retrieve the access token – or hardcode it if necessary.
-                    // For example, using a hardcoded token:
-                    // val accessToken = "syt_dGVzdHVzZXIyMg_siKxJKwLMAlCATmYUmHB_2xRTgP"
-                    val accessToken = session.sessionParams?.credentials?.accessToken ?: ""
-
-                    // Build GlideUrl with the Authorization header
-                    val glideUrl = GlideUrl(
-                        resolvedUrl,
-                        LazyHeaders.Builder()
-                            .addHeader("Authorization", "Bearer $accessToken")
-                            .build()
-                    )
-                    Glide.with(imageView.context)
-                        .load(glideUrl)
-                        .placeholder(R.drawable.user_default) // Placeholder image resource
-                        .error(R.drawable.user_default)       // Error image resource
-                        //.circleCrop()
-                        .into(imageView)
-                } else {
-                    // Fallback if resolution fails
-                    observeUserAvatar(session, imageView, user)
-                }
+                // Resolved to the v1 thumbnail endpoint, with the current token, when fetched
+                avatarRenderer.render(avatarUrl, user ?: session.myUserId, imageView, circle = false)
             } else {
                 // Fallback to observe user avatar if there's no valid MXC URI
                 observeUserAvatar(session, imageView, user)
@@ -637,13 +568,13 @@ class RoomListFragment : Fragment(), ToolbarConfigurable {
         user: String? = null
     ) {
         if (user != null) {
-            avatarRenderer.render(user, imageView)
+            avatarRenderer.render(null, user, imageView, circle = false)
         } else {
             session.userService().getUserLive(session.myUserId)
                 .observe(viewLifecycleOwner) { user ->
                     val userMatrixItem =
                         user.map { it.toMatrixItem() }.getOrNull() ?: return@observe
-                    avatarRenderer.render(userMatrixItem, imageView)
+                    avatarRenderer.render(userMatrixItem, imageView, circle = false)
                 }
         }
     }
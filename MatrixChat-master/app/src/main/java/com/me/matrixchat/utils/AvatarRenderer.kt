@@ -18,58 +18,43 @@ package com.me.matrixchat.utils
 
 import android.graphics.drawable.Drawable
 import android.widget.ImageView
-import com.amulyakhare.textdrawable.TextDrawable
-import com.me.matrixchat.R
-import com.squareup.picasso.Picasso
-import jp.wasabeef.picasso.transformations.CropCircleTransformation
-import org.matrix.android.sdk.api.session.content.ContentUrlResolver
+import com.me.matrixchat.media.ImagePipeline
+import com.me.matrixchat.media.MxcMediaModel
 import org.matrix.android.sdk.api.util.MatrixItem
-import com.me.matrixchat.SessionHolder
 
-class AvatarRenderer(private val matrixItemColorProvider: MatrixItemColorProvider) {
-
-    companion object {
-        private const val THUMBNAIL_SIZE = 250
+/**
+ * Renders avatars with [ImagePipeline], over a letter avatar from [LetterAvatarCache] which is
+ * also what is shown when there is no avatar or it cannot be loaded.
+ */
+class AvatarRenderer(
+    private val matrixItemColorProvider: MatrixItemColorProvider,
+    private val letterAvatarCache: LetterAvatarCache = LetterAvatarCache.shared
+) {
+
+    /**
+     * Renders [avatarUrl] (an mxc uri, or null) of [name], a display name or a Matrix id which also
+     * gives the letter avatar its color.
+     */
+    fun render(avatarUrl: String?, name: String?, imageView: ImageView, circle: Boolean = true) {
+        val color = matrixItemColorProvider.getColor(name)
+        ImagePipeline.loadAvatar(imageView, avatarModel(avatarUrl), circle, placeholder(imageView, name, color, circle))
     }
 
-    fun render(avatarUrl: String?, imageView: ImageView) {
-        val resolvedUrl = resolvedUrl(avatarUrl)
-        Picasso.get()
-            .load(resolvedUrl)
-            .placeholder(R.drawable.user_default)
-            .transform(CropCircleTransformation())
-            .into(imageView)
+    fun render(matrixItem: MatrixItem, imageView: ImageView, circle: Boolean = true) {
+        val color = matrixItemColorProvider.getColor(matrixItem)
+        val placeholder = placeholder(imageView, matrixItem.firstLetterOfDisplayName(), color, circle)
+        ImagePipeline.loadAvatar(imageView, avatarModel(matrixItem.avatarUrl), circle, placeholder)
     }
 
-    fun render(matrixItem: MatrixItem, imageView: ImageView) {
-        val resolvedUrl = resolvedUrl(matrixItem.avatarUrl)
-        val placeholder = getPlaceholderDrawable(matrixItem)
-        Picasso.get()
-            .load(resolvedUrl)
-            .placeholder(R.drawable.user_default)
-            .transform(CropCircleTransformation())
-            .into(imageView)
-    }
+    // PRIVATE API *********************************************************************************
 
-    private fun getPlaceholderDrawable(matrixItem: MatrixItem): Drawable {
-        val avatarColor = matrixItemColorProvider.getColor(matrixItem)
-        return TextDrawable.builder()
-            .beginConfig()
-            .bold()
-            .endConfig()
-            .buildRound(matrixItem.firstLetterOfDisplayName(), avatarColor)
+    private fun placeholder(imageView: ImageView, name: String?, color: Int, circle: Boolean): Drawable {
+        val shape = if (circle) LetterAvatarCache.Shape.ROUND else LetterAvatarCache.Shape.RECT
+        return letterAvatarCache.get(imageView, name, color, shape)
     }
 
-    // PRIVATE API *********************************************************************************
-
-    private fun resolvedUrl(avatarUrl: String?): String? {
-        // Take care of using contentUrlResolver to use with mxc://
-        return SessionHolder.currentSession?.contentUrlResolver()
-            ?.resolveThumbnail(
-                avatarUrl,
-                THUMBNAIL_SIZE,
-                THUMBNAIL_SIZE,
-                ContentUrlResolver.ThumbnailMethod.SCALE
-            )
+    // Anything but an mxc uri (no avatar, a user id) shows the placeholder
+    private fun avatarModel(avatarUrl: String?): MxcMediaModel? {
+        return avatarUrl?.takeIf { it.startsWith("mxc://") }?.let { MxcMediaModel.avatar(it) }
     }
 }
@@ -0,0 +1,110 @@
+package com.me.matrixchat.utils
+
+import android.content.res.Resources
+import android.graphics.Bitmap
+import android.graphics.drawable.BitmapDrawable
+import android.graphics.drawable.Drawable
+import android.util.LruCache
+import android.util.TypedValue
+import android.view.View
+import android.widget.ImageView
+import androidx.annotation.ColorInt
+import com.amulyakhare.textdrawable.TextDrawable
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Letter avatars (first letter of a name on a colored background) rendered once by a rasterized
+ * [TextDrawable] and kept as bitmaps, keyed by (letter, color, size, shape).
+ *
+ * They are the placeholder and error image of every avatar, so a list shows something meaningful
+ * at once, and offline, without any download or decode. Rooms sharing an initial and a color
+ * share a bitmap.
+ */
+class LetterAvatarCache(maxBytes: Int = DEFAULT_MAX_BYTES) {
+
+    enum class Shape {
+        ROUND,
+        RECT
+    }
+
+    private data class Key(val letter: String, @ColorInt val color: Int, val size: Int, val shape: Shape)
+
+    private val bitmaps = object : LruCache<Key, Bitmap>(maxBytes) {
+        override fun sizeOf(key: Key, value: Bitmap) = value.allocationByteCount
+    }
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+
+    val hitCount: Long
+        get() = hits.get()
+
+    val missCount: Long
+        get() = misses.get()
+
+    /** Returns the letter avatar of [name], at the size [imageView] is (or will be) laid out at. */
+    fun get(imageView: ImageView, name: String?, @ColorInt color: Int, shape: Shape): Drawable {
+        return get(imageView.resources, name, color, sizeOf(imageView), shape)
+    }
+
+    fun get(resources: Resources, name: String?, @ColorInt color: Int, size: Int, shape: Shape): Drawable {
+        val key = Key(firstLetterOf(name), color, size, shape)
+        val bitmap = bitmaps.get(key)?.also { hits.incrementAndGet() }
+            ?: render(key).also {
+                misses.incrementAndGet()
+                bitmaps.put(key, it)
+            }
+        // Only wraps the shared bitmap, nothing is copied
+        return BitmapDrawable(resources, bitmap)
+    }
+
+    private fun render(key: Key): Bitmap {
+        val builder = TextDrawable.builder()
+            .beginConfig()
+            .width(key.size)
+            .height(key.size)
+            .bold()
+            .rasterize()
+            .endConfig()
+        val drawable = when (key.shape) {
+            Shape.ROUND -> builder.buildRound(key.letter, key.color)
+            Shape.RECT -> builder.buildRect(key.letter, key.color)
+        }
+        drawable.setBounds(0, 0, key.size, key.size)
+        // Rendered once by the drawable, the drawable itself is not kept
+        return drawable.bitmap
+    }
+
+    // Avatars are often bound before their first layout, and some are wrap_content in a sized card
+    private fun sizeOf(view: ImageView): Int {
+        val candidates = sequenceOf(
+            view.width,
+            view.layoutParams?.width ?: 0,
+            (view.parent as? View)?.layoutParams?.width ?: 0
+        )
+        return candidates.firstOrNull { it > 0 } ?: TypedValue.applyDimension(
+            TypedValue.COMPLEX_UNIT_DIP,
+            DEFAULT_SIZE_DP,
+            view.resources.displayMetrics
+        ).toInt()
+    }
+
+    companion object {
+        private const val DEFAULT_MAX_BYTES = 2 * 1024 * 1024
+        private const val DEFAULT_SIZE_DP = 48f
+
+        val shared by lazy { LetterAvatarCache() }
+
+        /**
+         * Uppercased first letter of [name], skipping the sigil of a Matrix id (@user, #alias,
+         * !room, +group). Surrogate pairs are kept whole.
+         */
+        fun firstLetterOf(name: String?): String {
+            if (name.isNullOrBlank()) return ""
+            var start = 0
+            if (name.length > 1 && name[0] in "@#!+") start = 1
+            val end = start + Character.charCount(name.codePointAt(start))
+            return name.substring(start, end).uppercase()
+        }
+    }
+}
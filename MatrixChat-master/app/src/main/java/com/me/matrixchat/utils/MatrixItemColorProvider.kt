@@ -18,55 +18,46 @@ package com.me.matrixchat.utils
 
 import android.content.Context
 import androidx.annotation.ColorInt
-import androidx.annotation.ColorRes
-import androidx.annotation.VisibleForTesting
 import androidx.core.content.ContextCompat
-import org.matrix.android.sdk.api.util.MatrixItem
+import com.amulyakhare.textdrawable.util.ColorGenerator
 import com.me.matrixchat.R
-import kotlin.math.abs
+import org.matrix.android.sdk.api.util.MatrixItem
+
+/**
+ * Colors of users and rooms: avatars, letter avatars and sender names all use this one palette
+ * (the username_* colors) and the Matrix user color hash of [ColorGenerator], so a user or room has
+ * the same color everywhere.
+ */
+class MatrixItemColorProvider(context: Context) {
 
-class MatrixItemColorProvider(private val context: Context) {
-    private val cache = mutableMapOf<String, Int>()
+    private val generator = sharedGenerator(context)
 
     @ColorInt
-    fun getColor(matrixItem: MatrixItem): Int {
-        return cache.getOrPut(matrixItem.id) {
-            ContextCompat.getColor(
-                context,
-                when (matrixItem) {
-                    is MatrixItem.UserItem -> getColorFromUserId(matrixItem.id)
-                    else -> getColorFromRoomId(matrixItem.id)
-                }
-            )
-        }
-    }
+    fun getColor(matrixItem: MatrixItem): Int = generator.getColor(matrixItem.id)
 
-    companion object {
-        @ColorRes
-        @VisibleForTesting
-        fun getColorFromUserId(userId: String?): Int {
-            var hash = 0
+    /** Color of a Matrix id, or of a display name when that is all there is. */
+    @ColorInt
+    fun getColor(id: String?): Int = generator.getColor(id)
 
-            userId?.toList()?.map { chr -> hash = (hash shl 5) - hash + chr.code }
+    companion object {
+        private val PALETTE = intArrayOf(
+            R.color.username_1,
+            R.color.username_2,
+            R.color.username_3,
+            R.color.username_4,
+            R.color.username_5,
+            R.color.username_6,
+            R.color.username_7,
+            R.color.username_8
+        )
 
-            return when (abs(hash) % 8) {
-                1 -> R.color.username_2
-                2 -> R.color.username_3
-                3 -> R.color.username_4
-                4 -> R.color.username_5
-                5 -> R.color.username_6
-                6 -> R.color.username_7
-                7 -> R.color.username_8
-                else -> R.color.username_1
-            }
-        }
+        @Volatile
+        private var generator: ColorGenerator? = null
 
-        @ColorRes
-        private fun getColorFromRoomId(roomId: String?): Int {
-            return when ((roomId?.toList()?.sumOf { it.code } ?: 0) % 3) {
-                1 -> R.color.avatar_fill_2
-                2 -> R.color.avatar_fill_3
-                else -> R.color.avatar_fill_1
+        private fun sharedGenerator(context: Context): ColorGenerator {
+            return generator ?: synchronized(this) {
+                generator ?: ColorGenerator.create(*PALETTE.map { ContextCompat.getColor(context, it) }.toIntArray())
+                    .also { generator = it }
             }
         }
     }
@@ -0,0 +1,117 @@
+package com.me.matrixchat.utils
+
+import java.text.Normalizer
+import java.util.Locale
+
+/**
+ * Local index of the rooms of the session, answering the room list filter as the user types.
+ *
+ * Each room is indexed under the terms given to [update] (display name, aliases, the user of a
+ * direct chat), split into tokens which are lower cased and stripped of their diacritics, so
+ * "Zoë" is found with "zoe". Tokens are inserted in a prefix trie where every node holds the
+ * rooms having a token starting with that prefix: a query is one walk down the trie per query
+ * token and an intersection, independent of the number of rooms.
+ *
+ * Updates are incremental, a room whose terms did not change is not touched. Thread safe.
+ */
+class RoomFilterIndex {
+
+    private class Node {
+        val children = HashMap<Char, Node>(4)
+        val roomIds = HashSet<String>(4)
+    }
+
+    private val root = Node()
+    private val termsByRoom = HashMap<String, List<String>>()
+    private val tokensByRoom = HashMap<String, Set<String>>()
+
+    val size: Int
+        @Synchronized get() = termsByRoom.size
+
+    /** Indexes [roomId] under [terms], replacing its previous terms. */
+    @Synchronized
+    fun update(roomId: String, terms: List<String>) {
+        if (termsByRoom[roomId] == terms) return
+        val tokens = terms.flatMapTo(HashSet()) { tokenize(it) }
+        val previous = tokensByRoom[roomId]
+        termsByRoom[roomId] = terms
+        tokensByRoom[roomId] = tokens
+        if (previous == tokens) return
+        previous?.let { remove(roomId, it) }
+        tokens.forEach { insert(roomId, it) }
+    }
+
+    /** Indexes exactly the rooms of [termsByRoomId], removing the others. */
+    @Synchronized
+    fun sync(termsByRoomId: Map<String, List<String>>) {
+        termsByRoom.keys.filter { it !in termsByRoomId }.forEach { remove(it) }
+        termsByRoomId.forEach { (roomId, terms) -> update(roomId, terms) }
+    }
+
+    @Synchronized
+    fun remove(roomId: String) {
+        termsByRoom.remove(roomId)
+        tokensByRoom.remove(roomId)?.let { remove(roomId, it) }
+    }
+
+    /**
+     * Ids of the rooms having, for every token of [query], a token starting with it. All rooms
+     * for a query without any token.
+     */
+    @Synchronized
+    fun search(query: String): Set<String> {
+        val nodes = tokenize(query).map { find(it) ?: return emptySet() }
+        if (nodes.isEmpty()) return HashSet(termsByRoom.keys)
+        // Intersect from the most selective token
+        val sorted = nodes.sortedBy { it.roomIds.size }
+        val result = HashSet(sorted[0].roomIds)
+        for (i in 1 until sorted.size) {
+            result.retainAll(sorted[i].roomIds)
+            if (result.isEmpty()) break
+        }
+        return result
+    }
+
+    private fun find(prefix: String): Node? {
+        var node = root
+        for (char in prefix) {
+            node = node.children[char] ?: return null
+        }
+        return node
+    }
+
+    private fun insert(roomId: String, token: String) {
+        var node = root
+        for (char in token) {
+            node = node.children.getOrPut(char) { Node() }
+            node.roomIds.add(roomId)
+        }
+    }
+
+    private fun remove(roomId: String, tokens: Set<String>) {
+        tokens.forEach { token ->
+            var node = root
+            for (char in token) {
+                val child = node.children[char] ?: break
+                // A node is only reachable through nodes holding at least its rooms
+                if (child.roomIds.remove(roomId) && child.roomIds.isEmpty()) {
+                    node.children.remove(char)
+                    break
+                }
+                node = child
+            }
+        }
+    }
+
+    companion object {
+        private val DIACRITICS = Regex("\\p{Mn}+")
+        private val SEPARATORS = Regex("[^\\p{L}\\p{N}]+")
+
+        /** Lower cased tokens of [text] without diacritics, split on anything but letters and digits. */
+        fun tokenize(text: String): List<String> {
+            if (text.isEmpty()) return emptyList()
+            val folded = DIACRITICS.replace(Normalizer.normalize(text, Normalizer.Form.NFD), "")
+            return folded.lowercase(Locale.ROOT).split(SEPARATORS).filter { it.isNotEmpty() }
+        }
+    }
+}
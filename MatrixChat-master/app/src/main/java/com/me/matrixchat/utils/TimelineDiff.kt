@@ -0,0 +1,92 @@
+package com.me.matrixchat.utils
+
+import com.me.matrixchat.Models.Message
+import com.stfalcon.chatkit.commons.models.IMessage
+import com.stfalcon.chatkit.messages.MessagesListAdapter
+
+/**
+ * Minimal set of adapter operations turning one mapped timeline snapshot into the next one.
+ * Both lists are in adapter order, newest message first, and items are matched by event id.
+ *
+ * MessagesListAdapter interleaves date headers with messages, so positions can't be dispatched
+ * directly: everything is expressed with the id based add/update/delete API instead.
+ */
+internal class TimelineDiff private constructor(
+    val removed: List<Message>,
+    val changed: List<Message>,
+    val insertedAtStart: List<Message>,
+    val insertedAtEnd: List<Message>,
+    val fullReload: List<Message>?
+) {
+
+    val isEmpty: Boolean
+        get() = fullReload == null && removed.isEmpty() && changed.isEmpty() &&
+                insertedAtStart.isEmpty() && insertedAtEnd.isEmpty()
+
+    fun dispatchUpdatesTo(adapter: MessagesListAdapter<IMessage>) {
+        if (fullReload != null) {
+            adapter.clear()
+            adapter.addToEnd(fullReload, false)
+            return
+        }
+        if (removed.isNotEmpty()) {
+            adapter.delete(removed)
+        }
+        changed.forEach { adapter.update(it) }
+        // addToStart pushes on top of the list, so go from the oldest to the newest item
+        insertedAtStart.asReversed().forEach { adapter.addToStart(it, true) }
+        if (insertedAtEnd.isNotEmpty()) {
+            adapter.addToEnd(insertedAtEnd, false)
+        }
+    }
+
+    companion object {
+
+        fun compute(oldList: List<Message>, newList: List<Message>): TimelineDiff {
+            if (oldList.isEmpty()) {
+                return reload(newList)
+            }
+            val oldById = HashMap<String, Message>(oldList.size)
+            oldList.forEach { oldById[it.id] = it }
+            val newIds = HashSet<String>(newList.size)
+            newList.forEach { newIds.add(it.id) }
+
+            val removed = oldList.filter { it.id !in newIds }
+            val keptOld = oldList.filter { it.id in newIds }
+            val keptNew = newList.filter { oldById.containsKey(it.id) }
+            if (keptNew.isEmpty()) {
+                return reload(newList)
+            }
+            // The adapter can't move rows, so a reordering of kept items forces a reload
+            for (index in keptOld.indices) {
+                if (keptOld[index].id != keptNew[index].id) {
+                    return reload(newList)
+                }
+            }
+
+            val first = newList.indexOfFirst { oldById.containsKey(it.id) }
+            val last = newList.indexOfLast { oldById.containsKey(it.id) }
+            // Same goes for insertions in the middle of what is already displayed
+            if (last - first + 1 != keptNew.size) {
+                return reload(newList)
+            }
+
+            val changed = keptNew.filter { !it.isContentTheSame(oldById[it.id]) }
+            return TimelineDiff(
+                removed = removed,
+                changed = changed,
+                insertedAtStart = newList.subList(0, first),
+                insertedAtEnd = newList.subList(last + 1, newList.size),
+                fullReload = null
+            )
+        }
+
+        private fun reload(newList: List<Message>) = TimelineDiff(
+            removed = emptyList(),
+            changed = emptyList(),
+            insertedAtStart = emptyList(),
+            insertedAtEnd = emptyList(),
+            fullReload = newList
+        )
+    }
+}
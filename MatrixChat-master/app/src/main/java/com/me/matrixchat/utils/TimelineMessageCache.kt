@@ -0,0 +1,73 @@
+package com.me.matrixchat.utils
+
+import android.util.LruCache
+import com.me.matrixchat.Models.Message
+import org.matrix.android.sdk.api.session.room.sender.SenderInfo
+import org.matrix.android.sdk.api.session.room.timeline.TimelineEvent
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Bounded cache of the [Message] mapped from each [TimelineEvent] of a room.
+ *
+ * An entry is only reused while the event keeps the same version: same clear type (so an event
+ * decrypted since the last snapshot is mapped again), same latest edit, same sender info and not
+ * redacted since. A redaction keeps the type and prunes the content, which then maps to nothing:
+ * the original text must not outlive it in the cache.
+ * Repeated snapshots then only parse the events which are new or changed, including the ones
+ * which map to no message.
+ */
+class TimelineMessageCache(maxSize: Int = DEFAULT_MAX_SIZE) {
+
+    private data class Version(
+        val clearType: String?,
+        val latestEditId: String?,
+        val senderInfo: SenderInfo,
+        val redacted: Boolean
+    )
+
+    /** A mapped event, [message] is null for an event which maps to nothing. */
+    private class Entry(val version: Version, val message: Message?)
+
+    private val entries = LruCache<String, Entry>(maxSize)
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+
+    val hitCount: Long
+        get() = hits.get()
+
+    val missCount: Long
+        get() = misses.get()
+
+    suspend fun getOrPut(event: TimelineEvent, mapper: suspend (TimelineEvent) -> Message?): Message? {
+        val version = event.version()
+        val entry = entries.get(event.eventId)?.takeIf { it.version == version }
+        if (entry != null) {
+            hits.incrementAndGet()
+            return entry.message
+        }
+        misses.incrementAndGet()
+        // Mapping is deterministic for a version, so events skipped or failing to map (undecryptable,
+        // unsupported msgtype...) are remembered too rather than parsed again on every snapshot
+        return mapper(event).also { entries.put(event.eventId, Entry(version, it)) }
+    }
+
+    private fun TimelineEvent.version() = Version(
+        clearType = root.getClearType(),
+        latestEditId = annotations?.editSummary?.latestEdit?.eventId,
+        senderInfo = senderInfo,
+        redacted = root.isRedacted()
+    )
+
+    companion object {
+        // Large enough for a 1k-message room, a scan bigger than the cache would evict everything
+        private const val DEFAULT_MAX_SIZE = 2000
+        private const val MAX_ROOMS = 8
+
+        private val roomCaches = LruCache<String, TimelineMessageCache>(MAX_ROOMS)
+
+        fun forRoom(roomId: String): TimelineMessageCache = synchronized(roomCaches) {
+            roomCaches.get(roomId) ?: TimelineMessageCache().also { roomCaches.put(roomId, it) }
+        }
+    }
+}
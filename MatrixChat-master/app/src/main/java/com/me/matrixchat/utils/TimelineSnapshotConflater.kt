@@ -0,0 +1,64 @@
+package com.me.matrixchat.utils
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.flow.receiveAsFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import org.matrix.android.sdk.api.session.room.timeline.TimelineEvent
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Latest-wins processing of [org.matrix.android.sdk.api.session.room.timeline.Timeline.Listener] snapshots.
+ *
+ * Only the most recent pending snapshot is kept, and mapping a snapshot is cancelled as soon as a newer
+ * one is submitted, so an older snapshot can never be applied after a newer one.
+ * The [mapper] runs on [Dispatchers.Default], [onMapped] on the dispatcher of the given scope.
+ */
+class TimelineSnapshotConflater<T>(
+    scope: CoroutineScope,
+    private val mapper: suspend (List<TimelineEvent>) -> T,
+    private val onMapped: suspend (T) -> Unit
+) {
+
+    private val pending = AtomicReference<List<TimelineEvent>?>(null)
+    private val signal = Channel<Unit>(Channel.CONFLATED)
+
+    private val received = AtomicLong()
+    private val dropped = AtomicLong()
+
+    /** Number of snapshots submitted so far. */
+    val receivedCount: Long
+        get() = received.get()
+
+    /** Number of snapshots superseded before being applied, either still pending or in flight. */
+    val droppedCount: Long
+        get() = dropped.get()
+
+    init {
+        scope.launch {
+            signal.receiveAsFlow().collectLatest {
+                val snapshot = pending.getAndSet(null) ?: return@collectLatest
+                try {
+                    val mapped = withContext(Dispatchers.Default) { mapper(snapshot) }
+                    onMapped(mapped)
+                } catch (e: CancellationException) {
+                    dropped.incrementAndGet()
+                    throw e
+                }
+            }
+        }
+    }
+
+    fun submit(snapshot: List<TimelineEvent>) {
+        received.incrementAndGet()
+        if (pending.getAndSet(snapshot) != null) {
+            dropped.incrementAndGet()
+        }
+        signal.trySend(Unit)
+    }
+}
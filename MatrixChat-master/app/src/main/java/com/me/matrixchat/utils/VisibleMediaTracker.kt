@@ -0,0 +1,104 @@
+package com.me.matrixchat.utils
+
+import android.graphics.Rect
+import android.view.View
+import android.widget.ImageView
+import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
+import com.me.matrixchat.media.ImagePipeline
+import com.me.matrixchat.media.MediaDownloadScheduler
+import java.util.WeakHashMap
+
+/**
+ * Keeps the [MediaDownloadScheduler] priorities in line with a timeline's scroll state.
+ *
+ * Images bound to rows on screen are [MediaDownloadScheduler.Priority.VISIBLE], images bound to rows
+ * laid out or prefetched off screen are [MediaDownloadScheduler.Priority.NEAR_VIEWPORT]. The request of
+ * a recycled row is cleared, which takes its download out of the queue. Only the downloads of the
+ * images this tracker bound are re-prioritized, and its hints are dropped on [detach].
+ */
+internal class VisibleMediaTracker(
+    private val recyclerView: RecyclerView,
+    private val scheduler: MediaDownloadScheduler
+) : RecyclerView.OnScrollListener(), RecyclerView.RecyclerListener {
+
+    // Main thread only
+    private val boundImages = WeakHashMap<ImageView, String>()
+    private val visibleRect = Rect()
+
+    private var firstVisiblePosition = RecyclerView.NO_POSITION
+    private var lastVisiblePosition = RecyclerView.NO_POSITION
+
+    init {
+        recyclerView.addOnScrollListener(this)
+        recyclerView.addRecyclerListener(this)
+    }
+
+    /**
+     * To be called when [imageView] starts loading the media identified by [key].
+     */
+    fun onImageBound(imageView: ImageView, key: String) {
+        boundImages[imageView] = key
+    }
+
+    override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+        // Also called after each layout, the visible range is what matters, not every pixel
+        val layoutManager = recyclerView.layoutManager as? LinearLayoutManager ?: return
+        val first = layoutManager.findFirstVisibleItemPosition()
+        val last = layoutManager.findLastVisibleItemPosition()
+        if (first != firstVisiblePosition || last != lastVisiblePosition) {
+            firstVisiblePosition = first
+            lastVisiblePosition = last
+            updatePriorities()
+        }
+    }
+
+    override fun onScrollStateChanged(recyclerView: RecyclerView, newState: Int) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            updatePriorities()
+        }
+    }
+
+    override fun onViewRecycled(holder: RecyclerView.ViewHolder) {
+        val iterator = boundImages.keys.iterator()
+        while (iterator.hasNext()) {
+            val imageView = iterator.next()
+            if (imageView.isDescendantOf(holder.itemView)) {
+                ImagePipeline.clear(imageView)
+                iterator.remove()
+            }
+        }
+    }
+
+    fun detach() {
+        recyclerView.removeOnScrollListener(this)
+        recyclerView.removeRecyclerListener(this)
+        boundImages.clear()
+        scheduler.clearPriorities(this)
+    }
+
+    private fun updatePriorities() {
+        val priorities = HashMap<String, MediaDownloadScheduler.Priority>(boundImages.size)
+        boundImages.forEach { (imageView, key) ->
+            val priority = if (imageView.isShown && imageView.getGlobalVisibleRect(visibleRect)) {
+                MediaDownloadScheduler.Priority.VISIBLE
+            } else {
+                MediaDownloadScheduler.Priority.NEAR_VIEWPORT
+            }
+            // The same media may be bound twice, the most urgent wins
+            if (priorities[key]?.let { it.ordinal <= priority.ordinal } != true) {
+                priorities[key] = priority
+            }
+        }
+        scheduler.updatePriorities(this, priorities)
+    }
+
+    private fun View.isDescendantOf(ancestor: View): Boolean {
+        var view: View? = this
+        while (view != null) {
+            if (view === ancestor) return true
+            view = view.parent as? View
+        }
+        return false
+    }
+}
@@ -0,0 +1,125 @@
+package com.me.matrixchat.media;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import kotlin.io.ByteStreamsKt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link AttachmentDecryptor} must give the same plaintext as a CipherInputStream copy and the same
+ * hash as a MessageDigest over the ciphertext, in a single pass. Plain JVM, runs with the unit
+ * tests. Throughput is measured on a device by the instrumented AttachmentDecryptBenchmark.
+ */
+public class AttachmentDecryptorTest {
+
+    private final Random random = new Random(42);
+    private final byte[] key = randomBytes(32);
+    // As generated by Matrix clients: 64 random bits, then a 64 bit counter starting at 0
+    private final byte[] iv = Arrays.copyOf(randomBytes(8), 16);
+
+    @Test
+    public void singlePassMatchesCipherInputStreamAndMessageDigest() throws Exception {
+        // Several buffers, and not a multiple of the AES block size
+        byte[] cipherText = encrypt(randomBytes(AttachmentDecryptor.BUFFER_SIZE * 3 + 7));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteStreamsKt.copyTo(new CipherInputStream(new ByteArrayInputStream(cipherText), newCipher()), expected, 8 * 1024);
+        byte[] expectedHash = MessageDigest.getInstance("SHA-256").digest(cipherText);
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        ByteArrayOutputStream cipherTextCopy = new ByteArrayOutputStream();
+        MessageDigest digest = AttachmentDecryptor.newDigest();
+        long written = AttachmentDecryptor.decrypt(new ByteArrayInputStream(cipherText), actual, newCipher(), digest,
+                cipherTextCopy);
+
+        assertEquals(cipherText.length, written);
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        assertArrayEquals(expectedHash, digest.digest());
+        assertArrayEquals(cipherText, cipherTextCopy.toByteArray());
+    }
+
+    @Test
+    public void copyKeepsTheCipherTextAndHashesIt() throws Exception {
+        byte[] cipherText = encrypt(randomBytes(AttachmentDecryptor.BUFFER_SIZE + 7));
+
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        MessageDigest digest = AttachmentDecryptor.newDigest();
+        long read = AttachmentDecryptor.copy(new ByteArrayInputStream(cipherText), copy, digest);
+
+        assertEquals(cipherText.length, read);
+        assertArrayEquals(cipherText, copy.toByteArray());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(cipherText), digest.digest());
+    }
+
+    @Test
+    public void verifyAcceptsMatchingHashAndRejectsMismatch() throws Exception {
+        byte[] cipherText = encrypt(randomBytes(64 * 1024));
+        String sha256 = Base64.getEncoder().withoutPadding()
+                .encodeToString(MessageDigest.getInstance("SHA-256").digest(cipherText));
+
+        MessageDigest digest = AttachmentDecryptor.newDigest();
+        AttachmentDecryptor.decrypt(new ByteArrayInputStream(cipherText), new ByteArrayOutputStream(), newCipher(), digest);
+        AttachmentDecryptor.verify(digest, sha256);
+
+        // Url safe alphabet and padding are accepted as well
+        digest = AttachmentDecryptor.newDigest();
+        AttachmentDecryptor.copy(new ByteArrayInputStream(cipherText), null, digest);
+        AttachmentDecryptor.verify(digest, Base64.getUrlEncoder().encodeToString(
+                MessageDigest.getInstance("SHA-256").digest(cipherText)));
+
+        cipherText[cipherText.length / 2] ^= 1;
+        digest = AttachmentDecryptor.newDigest();
+        AttachmentDecryptor.decrypt(new ByteArrayInputStream(cipherText), new ByteArrayOutputStream(), newCipher(), digest);
+        try {
+            AttachmentDecryptor.verify(digest, sha256);
+            fail("A tampered attachment must be rejected");
+        } catch (AttachmentDecryptor.IntegrityException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void missingHashIsRejected() throws Exception {
+        assertEquals("AAA", AttachmentDecryptor.requireSha256("mxc://example.org/a", "AAA"));
+        try {
+            AttachmentDecryptor.requireSha256("mxc://example.org/a", null);
+            fail("An attachment without a hash must be rejected");
+        } catch (AttachmentDecryptor.IntegrityException expected) {
+            // Expected
+        }
+    }
+
+    private Cipher newCipher() throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    private byte[] encrypt(byte[] plainText) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        return cipher.doFinal(plainText);
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,113 @@
+package com.me.matrixchat.media;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Seeking into AES-CTR attachments: a cipher created at an offset, and a
+ * {@link DecryptingInputStream} which is skipped through, must give the same bytes as a single
+ * pass decryption from the start. Plain JVM, runs with the unit tests.
+ */
+public class EncryptedFileModelTest {
+
+    // Not a multiple of the AES block size
+    private static final int LENGTH = 100 * 1024 + 7;
+    private static final long[] OFFSETS = {0, 1, 15, 16, 17, 4096 + 5, LENGTH - 1, LENGTH};
+
+    private final Random random = new Random(42);
+    private final byte[] key = randomBytes(32);
+
+    @Test
+    public void cipherAtOffsetMatchesSinglePass() throws Exception {
+        // As generated by Matrix clients, and one whose counter carries into the high bytes
+        byte[] matrixIv = Arrays.copyOf(randomBytes(8), 16);
+        byte[] carryIv = new byte[16];
+        Arrays.fill(carryIv, 8, 16, (byte) 0xff);
+
+        for (byte[] iv : new byte[][]{matrixIv, carryIv}) {
+            byte[] plainText = randomBytes(LENGTH);
+            byte[] cipherText = encrypt(iv, plainText);
+            byte[] singlePass = EncryptedFileModel.createDecryptCipher(key, iv, 0).doFinal(cipherText);
+            assertArrayEquals(plainText, singlePass);
+
+            for (long offset : OFFSETS) {
+                Cipher cipher = EncryptedFileModel.createDecryptCipher(key, iv, offset);
+                byte[] tail = cipher.doFinal(cipherText, (int) offset, cipherText.length - (int) offset);
+                assertArrayEquals("offset " + offset,
+                        Arrays.copyOfRange(singlePass, (int) offset, singlePass.length), tail);
+            }
+        }
+    }
+
+    @Test
+    public void counterCarriesAcrossBytes() {
+        byte[] iv = new byte[16];
+        Arrays.fill(iv, 8, 16, (byte) 0xff);
+
+        byte[] expected = new byte[16];
+        expected[7] = 1;
+        assertArrayEquals(expected, EncryptedFileModel.counterAt(iv, 1));
+
+        byte[] max = new byte[16];
+        Arrays.fill(max, (byte) 0xff);
+        // Wraps around at 2^128
+        assertArrayEquals(new byte[16], EncryptedFileModel.counterAt(max, 1));
+    }
+
+    @Test
+    public void decryptingStreamRepositionsOnSkip() throws Exception {
+        byte[] iv = Arrays.copyOf(randomBytes(8), 16);
+        byte[] plainText = randomBytes(LENGTH);
+        byte[] cipherText = encrypt(iv, plainText);
+
+        InputStream input = new DecryptingInputStream(new ByteArrayInputStream(cipherText),
+                offset -> createCipher(iv, offset));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int position = 0;
+        while (position < LENGTH) {
+            if (random.nextBoolean()) {
+                position += (int) input.skip(random.nextInt(3000));
+                continue;
+            }
+            int read = input.read(buffer, 0, 1 + random.nextInt(buffer.length - 1));
+            if (read == -1) break;
+            expected.write(plainText, position, read);
+            actual.write(buffer, 0, read);
+            position += read;
+        }
+
+        assertEquals(-1, input.read());
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    private Cipher createCipher(byte[] iv, long offset) {
+        return EncryptedFileModel.createDecryptCipher(key, iv, offset);
+    }
+
+    private byte[] encrypt(byte[] iv, byte[] plainText) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        return cipher.doFinal(plainText);
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
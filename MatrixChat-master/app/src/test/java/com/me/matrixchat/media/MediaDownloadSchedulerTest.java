@@ -0,0 +1,64 @@
+package com.me.matrixchat.media;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Priority hints of the {@link MediaDownloadScheduler} given by several screens. No slot, so that
+ * every task stays queued. Plain JVM, runs with the unit tests.
+ */
+public class MediaDownloadSchedulerTest {
+
+    private static final MediaDownloadScheduler.Task NOTHING = done -> { };
+
+    private final MediaDownloadScheduler scheduler = new MediaDownloadScheduler(0);
+    private final Object timeline = new Object();
+    private final Object roomList = new Object();
+
+    @Test
+    public void onlyTheTasksAnOwnerHintedAreDemoted() {
+        MediaDownloadScheduler.Ticket image = scheduler.submit("mxc://example.org/image", MediaDownloadScheduler.Priority.NEAR_VIEWPORT, NOTHING);
+        MediaDownloadScheduler.Ticket avatar = scheduler.submit("mxc://example.org/avatar", MediaDownloadScheduler.Priority.VISIBLE, NOTHING);
+
+        scheduler.updatePriorities(timeline, Collections.singletonMap("mxc://example.org/image", MediaDownloadScheduler.Priority.VISIBLE));
+        assertEquals(MediaDownloadScheduler.Priority.VISIBLE, image.getPriority());
+        // Not bound to the timeline, left as its own screen submitted it
+        assertEquals(MediaDownloadScheduler.Priority.VISIBLE, avatar.getPriority());
+
+        // Scrolled past
+        scheduler.updatePriorities(timeline, Collections.emptyMap());
+        assertEquals(MediaDownloadScheduler.Priority.PREFETCH, image.getPriority());
+        assertEquals(MediaDownloadScheduler.Priority.VISIBLE, avatar.getPriority());
+    }
+
+    @Test
+    public void mostUrgentOwnerWins() {
+        String key = "mxc://example.org/shared";
+        MediaDownloadScheduler.Ticket ticket = scheduler.submit(key, MediaDownloadScheduler.Priority.PREFETCH, NOTHING);
+
+        scheduler.updatePriorities(roomList, Collections.singletonMap(key, MediaDownloadScheduler.Priority.NEAR_VIEWPORT));
+        scheduler.updatePriorities(timeline, Collections.singletonMap(key, MediaDownloadScheduler.Priority.VISIBLE));
+        assertEquals(MediaDownloadScheduler.Priority.VISIBLE, ticket.getPriority());
+
+        scheduler.clearPriorities(timeline);
+        assertEquals(MediaDownloadScheduler.Priority.NEAR_VIEWPORT, ticket.getPriority());
+    }
+
+    @Test
+    public void detachedOwnerNoLongerHintsNewTasks() {
+        Map<String, MediaDownloadScheduler.Priority> bound = new HashMap<>();
+        bound.put("mxc://example.org/a", MediaDownloadScheduler.Priority.VISIBLE);
+        scheduler.updatePriorities(timeline, bound);
+        assertEquals(MediaDownloadScheduler.Priority.VISIBLE,
+                scheduler.submit("mxc://example.org/a", MediaDownloadScheduler.Priority.PREFETCH, NOTHING).getPriority());
+
+        scheduler.clearPriorities(timeline);
+        assertEquals(MediaDownloadScheduler.Priority.PREFETCH,
+                scheduler.submit("mxc://example.org/a", MediaDownloadScheduler.Priority.PREFETCH, NOTHING).getPriority());
+    }
+}
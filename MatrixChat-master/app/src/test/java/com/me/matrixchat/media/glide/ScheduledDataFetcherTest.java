@@ -0,0 +1,202 @@
+package com.me.matrixchat.media.glide;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.me.matrixchat.media.MediaDownloadScheduler;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Slots of the {@link MediaDownloadScheduler} with fetchers which, like Glide's OkHttp fetcher,
+ * return from loadData at once and call back later from another thread, and with fetchers which,
+ * like the encrypted attachment fetcher, run their call inside loadData. Plain JVM, runs with the
+ * unit tests.
+ */
+public class ScheduledDataFetcherTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final MediaDownloadScheduler scheduler = new MediaDownloadScheduler(1);
+
+    @Test
+    public void slotIsHeldUntilTheFetcherCallsBack() throws Exception {
+        AsyncFetcher first = new AsyncFetcher();
+        AsyncFetcher second = new AsyncFetcher();
+        RecordingCallback firstCallback = new RecordingCallback();
+        RecordingCallback secondCallback = new RecordingCallback();
+
+        new ScheduledDataFetcher<>(first, "mxc://example.org/first", scheduler).loadData(Priority.HIGH, firstCallback);
+        first.awaitStarted();
+        new ScheduledDataFetcher<>(second, "mxc://example.org/second", scheduler).loadData(Priority.HIGH, secondCallback);
+
+        // loadData of the first fetcher has returned, its download is still in flight
+        assertEquals(1, scheduler.getRunningCount());
+        assertEquals(1, scheduler.getQueueDepth());
+        assertFalse(second.started.await(100, TimeUnit.MILLISECONDS));
+
+        first.callback.onDataReady("first");
+        assertSame("first", firstCallback.data);
+        second.awaitStarted();
+        assertEquals(1, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getQueueDepth());
+
+        IOException failure = new IOException("HTTP 404");
+        second.callback.onLoadFailed(failure);
+        assertSame(failure, secondCallback.failure);
+        assertEquals(0, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void cancelledLoadReleasesItsSlot() throws Exception {
+        AsyncFetcher fetcher = new AsyncFetcher();
+        ScheduledDataFetcher<String> scheduled = new ScheduledDataFetcher<>(fetcher, "mxc://example.org/a", scheduler);
+
+        scheduled.loadData(Priority.HIGH, new RecordingCallback());
+        fetcher.awaitStarted();
+        assertEquals(1, scheduler.getRunningCount());
+
+        // The fetcher never calls back once cancelled
+        scheduled.cancel();
+        assertTrue(fetcher.cancelled);
+        assertEquals(0, scheduler.getRunningCount());
+
+        // A late callback does not release a second time
+        fetcher.callback.onLoadFailed(new IOException("Canceled"));
+        assertEquals(0, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void cancelledSynchronousLoadHoldsItsSlotUntilLoadDataReturns() throws Exception {
+        BlockingFetcher fetcher = new BlockingFetcher();
+        ScheduledDataFetcher<String> scheduled = new ScheduledDataFetcher<>(fetcher, "mxc://example.org/a", scheduler);
+
+        scheduled.loadData(Priority.HIGH, new RecordingCallback());
+        assertTrue(fetcher.started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // The call still runs on the scheduler thread, another download must not start
+        scheduled.cancel();
+        assertEquals(1, scheduler.getRunningCount());
+
+        fetcher.release.countDown();
+        assertTrue(awaitIdle());
+    }
+
+    @Test
+    public void throwingFetcherFailsTheLoadAndReleasesItsSlot() throws Exception {
+        IllegalArgumentException failure = new IllegalArgumentException("unexpected url");
+        ThrowingFetcher fetcher = new ThrowingFetcher(failure);
+        RecordingCallback callback = new RecordingCallback();
+
+        new ScheduledDataFetcher<>(fetcher, "mxc://example.org/a", scheduler).loadData(Priority.HIGH, callback);
+
+        assertTrue(callback.reported.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertSame(failure, callback.failure);
+        assertTrue(awaitIdle());
+    }
+
+    // The slot is freed on the scheduler thread, after the test thread was released
+    private boolean awaitIdle() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (scheduler.getRunningCount() != 0) {
+            if (System.nanoTime() > deadline) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /** Runs its call inside loadData until released, like a cancelled OkHttp execute() unwinding. */
+    private static final class BlockingFetcher extends AsyncFetcher {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void loadData(@NonNull Priority priority, @NonNull DataCallback<? super String> callback) {
+            super.loadData(priority, callback);
+            try {
+                release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class ThrowingFetcher extends AsyncFetcher {
+        private final RuntimeException failure;
+
+        ThrowingFetcher(RuntimeException failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public void loadData(@NonNull Priority priority, @NonNull DataCallback<? super String> callback) {
+            throw failure;
+        }
+    }
+
+    private static class AsyncFetcher implements DataFetcher<String> {
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile DataCallback<? super String> callback;
+        volatile boolean cancelled;
+
+        @Override
+        public void loadData(@NonNull Priority priority, @NonNull DataCallback<? super String> callback) {
+            this.callback = callback;
+            started.countDown();
+        }
+
+        void awaitStarted() throws InterruptedException {
+            assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        @Override
+        public void cleanup() {
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @NonNull
+        @Override
+        public Class<String> getDataClass() {
+            return String.class;
+        }
+
+        @NonNull
+        @Override
+        public DataSource getDataSource() {
+            return DataSource.REMOTE;
+        }
+    }
+
+    private static final class RecordingCallback implements DataFetcher.DataCallback<String> {
+        final CountDownLatch reported = new CountDownLatch(1);
+        volatile String data;
+        volatile Exception failure;
+
+        @Override
+        public void onDataReady(@Nullable String data) {
+            this.data = data;
+            reported.countDown();
+        }
+
+        @Override
+        public void onLoadFailed(@NonNull Exception e) {
+            failure = e;
+            reported.countDown();
+        }
+    }
+}
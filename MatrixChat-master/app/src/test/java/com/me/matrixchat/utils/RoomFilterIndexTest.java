@@ -0,0 +1,100 @@
+package com.me.matrixchat.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Matching rules of {@link RoomFilterIndex}. Plain JVM, runs with the unit tests. The time of a
+ * keystroke is measured on a device by the instrumented RoomFilterIndexBenchmark.
+ */
+public class RoomFilterIndexTest {
+
+    private static final int ROOM_COUNT = 5000;
+    private static final String[] WORDS = {
+            "general", "random", "matrix", "bridge", "telegram", "whatsapp", "signal", "team",
+            "project", "release", "support", "design", "backend", "android", "ios", "web",
+            "zoë", "café", "über", "ångström", "family", "friends", "music", "games"
+    };
+
+    @Test
+    public void tokensAreLowerCasedAndFolded() {
+        assertEquals(Arrays.asList("zoe", "cafe", "uber"), RoomFilterIndex.Companion.tokenize("Zoë Café ÜBER"));
+        assertEquals(Arrays.asList("alice", "matrix", "org"), RoomFilterIndex.Companion.tokenize("@alice:matrix.org"));
+        assertEquals(Collections.emptyList(), RoomFilterIndex.Companion.tokenize(" - "));
+    }
+
+    @Test
+    public void matchesEveryQueryTokenAsAPrefix() {
+        RoomFilterIndex index = new RoomFilterIndex();
+        index.update("!a", Arrays.asList("Café Team", "#cafe:matrix.org"));
+        index.update("!b", Collections.singletonList("Team meeting"));
+        index.update("!c", Arrays.asList("Alice", "@alice:example.com"));
+
+        assertEquals(set("!a", "!b"), index.search("tea"));
+        assertEquals(set("!a"), index.search("CAFÉ te"));
+        assertEquals(set("!c"), index.search("alice:exa"));
+        assertEquals(set(), index.search("team alice"));
+        assertEquals(set("!a", "!b", "!c"), index.search("  "));
+    }
+
+    @Test
+    public void updatesAreIncremental() {
+        RoomFilterIndex index = new RoomFilterIndex();
+        index.update("!a", Collections.singletonList("Anna Annabel"));
+        index.update("!b", Collections.singletonList("Annie"));
+
+        index.update("!a", Collections.singletonList("Bob"));
+        assertEquals(set("!b"), index.search("ann"));
+        assertEquals(set("!a"), index.search("bo"));
+
+        Map<String, List<String>> remaining = new HashMap<>();
+        remaining.put("!a", Collections.singletonList("Bob"));
+        index.sync(remaining);
+        assertEquals(set(), index.search("ann"));
+        assertEquals(1, index.getSize());
+    }
+
+    @Test
+    public void resyncKeepsTheMatches() {
+        Map<String, List<String>> rooms = generateRooms(ROOM_COUNT);
+        RoomFilterIndex index = new RoomFilterIndex();
+        index.sync(rooms);
+
+        Set<String> matches = index.search("bridge");
+        assertTrue(matches.size() > 0);
+        for (String roomId : matches) {
+            assertTrue(rooms.get(roomId).get(0).contains("bridge"));
+        }
+
+        index.sync(rooms);
+        assertEquals(matches, index.search("bridge"));
+        assertEquals(ROOM_COUNT, index.getSize());
+    }
+
+    /** Rooms named after two random words, with an alias and a user, the same on every run. */
+    private static Map<String, List<String>> generateRooms(int count) {
+        Random random = new Random(42);
+        Map<String, List<String>> rooms = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            rooms.put("!room" + i + ":example.org",
+                    Arrays.asList(name, "#" + name.replace(' ', '-') + ":example.org", "@user" + i + ":example.org"));
+        }
+        return rooms;
+    }
+
+    private static Set<String> set(String... roomIds) {
+        return new HashSet<>(Arrays.asList(roomIds));
+    }
+}
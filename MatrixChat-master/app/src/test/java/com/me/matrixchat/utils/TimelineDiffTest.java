@@ -0,0 +1,124 @@
+package com.me.matrixchat.utils;
+
+import com.me.matrixchat.Models.Message;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Operations {@link TimelineDiff} derives from two snapshots, in adapter order (newest first), and
+ * the cases which fall back to a full reload.
+ */
+public class TimelineDiffTest {
+
+    @Test
+    public void firstSnapshotIsAReload() {
+        List<Message> snapshot = messages("c", "b", "a");
+
+        TimelineDiff diff = TimelineDiff.Companion.compute(Collections.emptyList(), snapshot);
+
+        assertSame(snapshot, diff.getFullReload());
+    }
+
+    @Test
+    public void sameSnapshotIsEmpty() {
+        TimelineDiff diff = TimelineDiff.Companion.compute(messages("c", "b", "a"), messages("c", "b", "a"));
+
+        assertTrue(diff.isEmpty());
+    }
+
+    @Test
+    public void newMessagesAreInsertedAtStart() {
+        TimelineDiff diff = TimelineDiff.Companion.compute(messages("b", "a"), messages("d", "c", "b", "a"));
+
+        assertNull(diff.getFullReload());
+        assertEquals(Arrays.asList("d", "c"), ids(diff.getInsertedAtStart()));
+        assertTrue(diff.getInsertedAtEnd().isEmpty());
+        assertTrue(diff.getChanged().isEmpty());
+        assertTrue(diff.getRemoved().isEmpty());
+    }
+
+    @Test
+    public void olderMessagesAreInsertedAtEnd() {
+        TimelineDiff diff = TimelineDiff.Companion.compute(messages("d", "c"), messages("d", "c", "b", "a"));
+
+        assertNull(diff.getFullReload());
+        assertEquals(Arrays.asList("b", "a"), ids(diff.getInsertedAtEnd()));
+        assertTrue(diff.getInsertedAtStart().isEmpty());
+    }
+
+    @Test
+    public void editedMessageIsUpdatedInPlace() {
+        List<Message> newList = messages("c", "b", "a");
+        newList.get(1).setText("edited");
+
+        TimelineDiff diff = TimelineDiff.Companion.compute(messages("c", "b", "a"), newList);
+
+        assertNull(diff.getFullReload());
+        assertEquals(Collections.singletonList("b"), ids(diff.getChanged()));
+        assertTrue(diff.getInsertedAtStart().isEmpty());
+        assertTrue(diff.getInsertedAtEnd().isEmpty());
+        assertTrue(diff.getRemoved().isEmpty());
+    }
+
+    @Test
+    public void redactedMessageIsRemoved() {
+        TimelineDiff diff = TimelineDiff.Companion.compute(messages("c", "b", "a"), messages("c", "a"));
+
+        assertNull(diff.getFullReload());
+        assertEquals(Collections.singletonList("b"), ids(diff.getRemoved()));
+        assertTrue(diff.getChanged().isEmpty());
+    }
+
+    @Test
+    public void insertionInTheMiddleIsAReload() {
+        List<Message> newList = messages("c", "x", "b", "a");
+
+        TimelineDiff diff = TimelineDiff.Companion.compute(messages("c", "b", "a"), newList);
+
+        assertSame(newList, diff.getFullReload());
+    }
+
+    @Test
+    public void reorderIsAReload() {
+        List<Message> newList = messages("b", "c", "a");
+
+        TimelineDiff diff = TimelineDiff.Companion.compute(messages("c", "b", "a"), newList);
+
+        assertSame(newList, diff.getFullReload());
+    }
+
+    @Test
+    public void disjointSnapshotIsAReload() {
+        List<Message> newList = messages("z", "y");
+
+        TimelineDiff diff = TimelineDiff.Companion.compute(messages("c", "b", "a"), newList);
+
+        assertSame(newList, diff.getFullReload());
+    }
+
+    private static List<Message> messages(String... ids) {
+        List<Message> messages = new ArrayList<>();
+        for (String id : ids) {
+            messages.add(new Message(null, id, "@alice:example.org", "!room:example.org", "text " + id, null, "0", false));
+        }
+        return messages;
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        List<String> ids = new ArrayList<>();
+        for (Message message : messages) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+}